@@ -0,0 +1,93 @@
+package it.unipi.hadoop;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ Whole runs of the driver (KMeansClustering.main) under the LocalJobRunner, on a generated dataset of n points around k centers.
+ The threshold is negative, so every run executes exactly ITERATIONS iterations whatever the random initial centroids are.
+ Every measurement is one complete run (job submission, map, shuffle, reduce and driver work included).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final int ITERATIONS = 5;
+
+    @Param({"10000", "100000", "1000000"})
+    public int n;
+
+    @Param({"4", "16"})
+    public int k;
+
+    @Param({"3", "20"})
+    public int d;
+
+    @Param({"mapreduce", "inmemory"})
+    public String execution;
+
+    private File directory;
+    private File input;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        directory = Files.createTempDirectory("kmeans-bench").toFile();
+        input = new File(directory, "points.txt");
+        Random random = new Random(42);
+        double[][] centers = new double[k][d];
+        for (double[] center : centers)
+            for (int j = 0; j < d; j++)
+                center[j] = random.nextDouble() * 100;
+        try (BufferedWriter writer = Files.newBufferedWriter(input.toPath(), StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                double[] center = centers[random.nextInt(k)];
+                line.setLength(0);
+                for (int j = 0; j < d; j++)
+                    line.append(j > 0 ? "," : "").append(center[j] + random.nextGaussian());
+                writer.write(line.append('\n').toString());
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanOutputs() throws IOException { // Outputs, checkpoints and metrics of the previous run
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("out") || name.startsWith(".out") || name.equals("run"));
+        if (files != null)
+            for (File file : files)
+                delete(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() throws IOException {
+        delete(directory);
+    }
+
+    @Benchmark
+    public void run() throws Exception {
+        KMeansClustering.main(new String[]{
+                "-D", "execution=" + execution,
+                "-D", "run.dir=" + new File(directory, "run").getPath(),
+                String.valueOf(k), String.valueOf(d), String.valueOf(n), "-1", String.valueOf(ITERATIONS), "1",
+                input.getPath(), new File(directory, "out").getPath()});
+    }
+
+    private static void delete(File file) throws IOException {
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
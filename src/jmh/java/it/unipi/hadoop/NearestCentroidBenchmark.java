@@ -0,0 +1,69 @@
+package it.unipi.hadoop;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Cost of the nearest centroid search of the mappers (KMeansMapper delegates to the strategy built in setup) over n points, for
+ every "search" implementation ("blocked-expansion" is the blocked search with "search.expansion"). The reported time is for the
+ whole pass (divide by n for the time per point). The points are drawn around k well separated centers and the centroids are
+ close to them, as in the iterations after the first ones, where the pruning of triangle and kdtree matters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NearestCentroidBenchmark {
+    @Param({"4", "32", "256"})
+    public int k;
+
+    @Param({"2", "10", "100"})
+    public int d;
+
+    @Param({"linear", "triangle", "kdtree", "blocked", "blocked-expansion"})
+    public String search;
+
+    @Param({"1024", "16384", "131072"})
+    public int n;
+
+    private double[][] points;
+    private NearestCentroidSearch strategy;
+    private final long[] distanceCounts = new long[3];
+    private final double[] minDistance = new double[1];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        double[][] centers = new double[k][d];
+        for (double[] center : centers)
+            for (int j = 0; j < d; j++)
+                center[j] = random.nextDouble() * 1000;
+        Point[] centroids = new Point[k];
+        for (int c = 0; c < k; c++) {
+            double[] coordinates = new double[d];
+            for (int j = 0; j < d; j++)
+                coordinates[j] = centers[c][j] + random.nextGaussian();
+            centroids[c] = new Point();
+            centroids[c].setCoordinates(coordinates);
+        }
+        points = new double[n][d];
+        for (double[] point : points) {
+            double[] center = centers[random.nextInt(k)];
+            for (int j = 0; j < d; j++)
+                point[j] = center[j] + random.nextGaussian() * 10;
+        }
+        strategy = "blocked-expansion".equals(search) ? new BlockedSearch(centroids, true) : NearestCentroidSearch.create(search, centroids);
+    }
+
+    @Benchmark
+    public int nearest() {
+        int sum = 0;
+        for (double[] point : points)
+            sum += strategy.nearest(point, distanceCounts, minDistance);
+        return sum;
+    }
+}
@@ -0,0 +1,140 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Cost of the Point operations used in the map and reduce hot paths: distance, sums, parsing of an input line
+ (the old Point(String, int) constructor and the streaming PointParser) and the Writable serialization round trip.
+ Every benchmark method processes the same n random points, and the reported time is for the whole pass over them (divide by n
+ for the time per point): the sizes go from data that fits in the L1/L2 caches to data that only fits in main memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointBenchmark {
+    @Param({"2", "10", "100"})
+    public int d;
+
+    @Param({"256", "4096", "32768"})
+    public int n;
+
+    private Point[] points;
+    private String[] lines;
+    private Text[] texts;
+    private PointParser parser;
+    private double[] coordinates;
+    private DataOutputBuffer serialized; // The n points one after the other, as the reducer receives them
+    private final DataOutputBuffer out = new DataOutputBuffer();
+    private final DataInputBuffer in = new DataInputBuffer();
+    private final Point reused = new Point();
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        points = new Point[n];
+        lines = new String[n];
+        texts = new Text[n];
+        serialized = new DataOutputBuffer();
+        for (int i = 0; i < n; i++) {
+            double[] values = new double[d];
+            for (int j = 0; j < d; j++)
+                values[j] = random.nextGaussian() * 100;
+            points[i] = new Point();
+            points[i].setCoordinates(values);
+            lines[i] = points[i].toString();
+            texts[i] = new Text(lines[i]);
+            points[i].write(serialized);
+        }
+        parser = new PointParser(d);
+        coordinates = new double[d];
+    }
+
+    @Benchmark
+    public double calculateDistanceSquared() {
+        double sum = 0;
+        Point first = points[0];
+        for (Point point : points)
+            sum += first.calculateDistanceSquared(point);
+        return sum;
+    }
+
+    @Benchmark
+    public Point sumPoint() {
+        Point sum = new Point(d);
+        for (Point point : points)
+            sum.sumPoint(point);
+        return sum;
+    }
+
+    // Same access pattern of KMeansReducer: the values are deserialized one at a time into a single reused object
+    @Benchmark
+    public Point sumPoints() {
+        return Point.sumPoints(() -> new Iterator<Point>() {
+            private final DataInputBuffer values = new DataInputBuffer();
+            private final Point value = new Point();
+            private int read;
+
+            {
+                values.reset(serialized.getData(), serialized.getLength());
+            }
+
+            @Override
+            public boolean hasNext() {
+                return read < n;
+            }
+
+            @Override
+            public Point next() {
+                try {
+                    value.readFields(values);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                read++;
+                return value;
+            }
+        });
+    }
+
+    @Benchmark
+    public double parseString() {
+        double sum = 0;
+        for (String line : lines)
+            sum += new Point(line, d).getCoordinates()[d - 1];
+        return sum;
+    }
+
+    @Benchmark
+    public double parseText() {
+        double sum = 0;
+        for (Text text : texts) {
+            parser.parse(text, coordinates);
+            sum += coordinates[d - 1];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double writableRoundTrip() throws IOException {
+        double sum = 0;
+        for (Point point : points) {
+            out.reset();
+            point.write(out);
+            in.reset(out.getData(), out.getLength());
+            reused.readFields(in);
+            sum += reused.getCoordinates()[0];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,100 @@
+package it.unipi.hadoop;
+
+/*
+ Scan of all the k centroids with a blocked layout. The centroids are copied in a single contiguous double[] in tiles of 4 centroids;
+ inside a tile the layout is coordinate-major (block[offset + 4 * j + c] is the j-th coordinate of the c-th centroid of the tile),
+ so a point is compared with 4 centroids at a time: 4 independent accumulators kept in registers, fed by one sequential stream of
+ memory (the JIT can also pack the 4 lanes in SIMD instructions), instead of one dependent chain of additions per centroid.
+ Each distance is still accumulated coordinate by coordinate in the same order as Point.calculateDistanceSquared and ties are
+ resolved towards the lowest index, so the result is exactly the one of LinearSearch.
+ With "search.expansion" the distances are computed as |x|^2 - 2 x.c + |c|^2, with the centroid norms computed once: one
+ multiply-add per coordinate instead of a subtraction, a multiply and an add, but the rounding differs from the direct formula
+ (cancellation when the point is far from the origin compared to the distances), so centroids at almost the same distance can be
+ resolved differently, and the returned distance is the expanded one (clamped at 0). "search.validate" checks the assignments
+ against the scalar scan.
+ */
+public class BlockedSearch implements NearestCentroidSearch {
+    private static final int TILE = 4; // Centroids per tile: their four accumulators are kept in registers
+
+    private final int k;
+    private final int d;
+    private final double[] block; // Tiles one after the other, the centroids of the last tile past k are zero (and never selected)
+    private final double[] norms; // Squared norms of the centroids (used only with the expansion)
+    private final boolean expansion;
+
+    public BlockedSearch(Point[] centroids, boolean expansion) {
+        this.k = centroids.length;
+        this.d = centroids[0].getCoordinates().length;
+        this.expansion = expansion;
+        int tiles = (k + TILE - 1) / TILE;
+        block = new double[tiles * TILE * d];
+        norms = new double[k];
+        for (int c = 0; c < k; c++) {
+            double[] coordinates = centroids[c].getCoordinates();
+            int offset = (c / TILE) * TILE * d + c % TILE;
+            for (int j = 0; j < d; j++) {
+                block[offset + j * TILE] = coordinates[j];
+                norms[c] += coordinates[j] * coordinates[j];
+            }
+        }
+    }
+
+    @Override
+    public int nearest(double[] point, long[] distanceCounts, double[] bestDistance) {
+        double pointNorm = 0;
+        if (expansion)
+            for (int j = 0; j < d; j++)
+                pointNorm += point[j] * point[j];
+        double minDistance = Double.POSITIVE_INFINITY;
+        int minIndex = 0;
+        double d0, d1, d2, d3;
+        for (int first = 0, offset = 0; first < k; first += TILE, offset += TILE * d) {
+            d0 = d1 = d2 = d3 = 0;
+            if (expansion) {
+                for (int j = 0, row = offset; j < d; j++, row += TILE) { // Four independent dot products
+                    double coordinate = point[j];
+                    d0 += block[row] * coordinate;
+                    d1 += block[row + 1] * coordinate;
+                    d2 += block[row + 2] * coordinate;
+                    d3 += block[row + 3] * coordinate;
+                }
+                d0 = pointNorm - 2 * d0 + norms[first];
+                d1 = first + 1 < k ? pointNorm - 2 * d1 + norms[first + 1] : d1;
+                d2 = first + 2 < k ? pointNorm - 2 * d2 + norms[first + 2] : d2;
+                d3 = first + 3 < k ? pointNorm - 2 * d3 + norms[first + 3] : d3;
+            } else {
+                for (int j = 0, row = offset; j < d; j++, row += TILE) { // Four independent squared distances
+                    double coordinate = point[j];
+                    double diff0 = block[row] - coordinate;
+                    double diff1 = block[row + 1] - coordinate;
+                    double diff2 = block[row + 2] - coordinate;
+                    double diff3 = block[row + 3] - coordinate;
+                    d0 += diff0 * diff0;
+                    d1 += diff1 * diff1;
+                    d2 += diff2 * diff2;
+                    d3 += diff3 * diff3;
+                }
+            }
+            if (d0 < minDistance) {
+                minDistance = d0;
+                minIndex = first;
+            }
+            int size = Math.min(TILE, k - first);
+            if (size > 1 && d1 < minDistance) {
+                minDistance = d1;
+                minIndex = first + 1;
+            }
+            if (size > 2 && d2 < minDistance) {
+                minDistance = d2;
+                minIndex = first + 2;
+            }
+            if (size > 3 && d3 < minDistance) {
+                minDistance = d3;
+                minIndex = first + 3;
+            }
+        }
+        distanceCounts[0] += k;
+        bestDistance[0] = Math.max(0, minDistance);
+        return minIndex;
+    }
+}
@@ -0,0 +1,23 @@
+package it.unipi.hadoop;
+
+// The original stopping rule: every centroid moved less than the threshold (squared distance) in the last iteration
+public class CentroidShiftCriterion implements ConvergenceCriterion {
+    private final double threshold;
+
+    public CentroidShiftCriterion(double threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public boolean converged(IterationResult result) {
+        double error;
+        for (int i = 0; i < result.oldCentroids.length; i++) {
+            error = result.oldCentroids[i].calculateDistanceSquared(result.newCentroids[i]);
+            if (error > threshold) {
+                System.out.println("Error : " + error);
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,96 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.util.Base64;
+
+/*
+ Distribution of the centroids (or of any small set of points, e.g. the k-means|| candidates) from the driver to the map tasks.
+ The points are encoded as k * d big-endian doubles. If the encoding is small ("centroids.inline.max" bytes, 64 KB by default)
+ it is inlined in the configuration of the job; otherwise it is written to a binary file in the namespace of the run and shipped
+ to the tasks through the distributed cache. In both cases every job reads its own copy (concurrent runs cannot overwrite each
+ other's centroids) and the mappers load all the points with a single bulk read, without any text parsing. When the reassigned points
+ are counted ("changed" convergence criterion) the centroids of the previous iteration are attached after the current ones.
+ */
+public class Centroids {
+    private static final String INLINE_PROPERTY = "centroids.inline";
+    private static final String LINK_PROPERTY = "centroids.link"; // Name of the symbolic link created by the distributed cache in the task directory
+
+    // Attaches the points to the job; "file" is where they are written if they are too large to be inlined in the configuration
+    public static void distribute(Job job, Point[] points, Path file) throws IOException {
+        Configuration conf = job.getConfiguration();
+        byte[] bytes = toBytes(points);
+        conf.unset(INLINE_PROPERTY);
+        conf.unset(LINK_PROPERTY);
+        if (bytes.length <= conf.getInt("centroids.inline.max", 64 * 1024)) {
+            conf.set(INLINE_PROPERTY, Base64.getEncoder().encodeToString(bytes));
+            return;
+        }
+        FileSystem fs = file.getFileSystem(conf);
+        try (FSDataOutputStream out = fs.create(file, true)) {
+            out.write(bytes);
+        }
+        URI uri = fs.makeQualified(file).toUri();
+        conf.set(LINK_PROPERTY, file.getName()); // The file name is unique within the run, so the links of different jobs never clash
+        job.addCacheFile(URI.create(uri + "#" + file.getName()));
+    }
+
+    // Loads the points attached to the job of the task
+    public static Point[] load(Mapper<?, ?, ?, ?>.Context context) throws IOException {
+        Configuration conf = context.getConfiguration();
+        int d = conf.getInt("d", 2);
+        String inline = conf.get(INLINE_PROPERTY);
+        if (inline != null)
+            return fromBytes(Base64.getDecoder().decode(inline), d);
+        String name = conf.get(LINK_PROPERTY, "");
+        File link = new File(name);
+        if (link.isFile()) // Localized copy in the working directory of the task
+            return fromBytes(Files.readAllBytes(link.toPath()), d);
+        URI uri = null; // Otherwise the original file, found by its fragment (the job can have other cache files, e.g. from "-files")
+        URI[] cacheFiles = context.getCacheFiles();
+        if (cacheFiles != null)
+            for (URI cacheFile : cacheFiles)
+                if (name.equals(cacheFile.getFragment()))
+                    uri = cacheFile;
+        if (name.isEmpty() || uri == null)
+            throw new IOException("Centroid file not found");
+        Path file = new Path(uri.getPath());
+        FileSystem fs = FileSystem.get(uri, conf);
+        byte[] bytes = new byte[(int) fs.getFileStatus(file).getLen()];
+        try (FSDataInputStream in = fs.open(file)) {
+            in.readFully(bytes);
+        }
+        return fromBytes(bytes, d);
+    }
+
+    public static byte[] toBytes(Point[] points) {
+        int d = points.length == 0 ? 0 : points[0].getCoordinates().length;
+        ByteBuffer buffer = ByteBuffer.allocate(8 * d * points.length);
+        DoubleBuffer doubles = buffer.asDoubleBuffer();
+        for (Point point : points)
+            doubles.put(point.getCoordinates(), 0, d);
+        return buffer.array();
+    }
+
+    public static Point[] fromBytes(byte[] bytes, int d) {
+        DoubleBuffer doubles = ByteBuffer.wrap(bytes).asDoubleBuffer();
+        Point[] points = new Point[bytes.length / (8 * d)];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point(d);
+            doubles.get(points[i].getCoordinates());
+        }
+        return points;
+    }
+}
@@ -0,0 +1,111 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+
+/*
+ State of the driver after a completed iteration: iteration number, last error (largest squared movement of a centroid),
+ centroids (with the number of points assigned to them), cluster sizes (cumulative in the mini-batch and streaming modes) and
+ the input files summarized by the centroids (used by the streaming mode to process only the files that arrived later).
+ The checkpoint is written in binary form to "<output>_checkpoint" after every iteration. The new version is written to a temporary
+ file and then renamed over the old one (the previous version is kept as "<output>_checkpoint.prev"), so a crash of the driver can
+ never leave a partially written checkpoint. With "-D resume=true" the driver restarts from the latest valid checkpoint.
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x4B4D4350; // "KMCP"
+    private static final int VERSION = 2; // Version 1 had no list of input files
+
+    public final int iteration;
+    public final double error;
+    public final Point[] centroids;
+    public final long[] clusterCounts;
+    public final String[] inputFiles;
+
+    public Checkpoint(int iteration, double error, Point[] centroids, long[] clusterCounts, String[] inputFiles) {
+        this.iteration = iteration;
+        this.error = error;
+        this.centroids = centroids;
+        this.clusterCounts = clusterCounts;
+        this.inputFiles = inputFiles;
+    }
+
+    public static Path getPath(String output) {
+        return new Path(output + "_checkpoint");
+    }
+
+    public void write(Configuration conf, Path path) throws IOException {
+        FileContext fc = FileContext.getFileContext(path.toUri(), conf);
+        Path temporary = path.suffix(".tmp");
+        try (FSDataOutputStream out = fc.create(temporary, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(iteration);
+            out.writeDouble(error);
+            out.writeInt(centroids.length);
+            for (Point centroid : centroids)
+                centroid.write(out);
+            for (long count : clusterCounts)
+                out.writeLong(count);
+            out.writeInt(inputFiles.length);
+            for (String file : inputFiles)
+                out.writeUTF(file);
+            out.writeInt(MAGIC); // End marker
+            out.hsync();
+        }
+        if (fc.util().exists(path))
+            fc.rename(path, path.suffix(".prev"), Options.Rename.OVERWRITE);
+        fc.rename(temporary, path, Options.Rename.OVERWRITE);
+    }
+
+    // Returns the latest valid checkpoint for k centroids of dimension d, or null if there is none
+    public static Checkpoint readLatest(Configuration conf, Path path, int k, int d) throws IOException {
+        FileContext fc = FileContext.getFileContext(path.toUri(), conf);
+        for (Path candidate : new Path[]{path, path.suffix(".prev")}) {
+            if (!fc.util().exists(candidate))
+                continue;
+            Checkpoint checkpoint = null;
+            try (DataInputStream in = fc.open(candidate)) {
+                checkpoint = read(in, k, d);
+            } catch (IOException e) {
+                // Truncated or corrupted: fall back to the previous version
+            }
+            if (checkpoint != null)
+                return checkpoint;
+            System.err.println("Ignoring invalid checkpoint " + candidate);
+        }
+        return null;
+    }
+
+    private static Checkpoint read(DataInputStream in, int k, int d) throws IOException {
+        if (in.readInt() != MAGIC)
+            return null;
+        int version = in.readInt();
+        if (version < 1 || version > VERSION)
+            return null;
+        int iteration = in.readInt();
+        double error = in.readDouble();
+        if (in.readInt() != k)
+            return null;
+        Point[] centroids = new Point[k];
+        for (int i = 0; i < k; i++) {
+            centroids[i] = new Point();
+            centroids[i].readFields(in);
+            if (centroids[i].getCoordinates().length != d)
+                return null;
+        }
+        long[] clusterCounts = new long[k];
+        for (int i = 0; i < k; i++)
+            clusterCounts[i] = in.readLong();
+        int files = version > 1 ? in.readInt() : 0;
+        if (files < 0)
+            return null;
+        String[] inputFiles = new String[files];
+        for (int i = 0; i < inputFiles.length; i++)
+            inputFiles[i] = in.readUTF();
+        return in.readInt() == MAGIC ? new Checkpoint(iteration, error, centroids, clusterCounts, inputFiles) : null;
+    }
+}
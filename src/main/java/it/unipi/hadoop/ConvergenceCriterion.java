@@ -0,0 +1,53 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+
+/*
+ Stopping rule of the driver loop, evaluated after every iteration (MapReduce or in-memory). The criteria are listed in the
+ "convergence" property, separated by commas, and the run stops as soon as one of them is satisfied:
+ shift (default, every centroid moved less than the threshold, as squared distance), sse (relative change of the cost),
+ changed (fraction of the points assigned to a different centroid than in the previous iteration) and time (wall-clock budget).
+ Every listed criterion is evaluated at every iteration, so the stateful ones (e.g. the previous cost) always see the whole history.
+ */
+public interface ConvergenceCriterion {
+
+    // Returns true if the run can stop after the given iteration (the reason is printed by the criterion that fires)
+    boolean converged(IterationResult result);
+
+    static ConvergenceCriterion create(String name, Configuration conf, double threshold) {
+        switch (name) {
+            case "shift":
+                return new CentroidShiftCriterion(threshold);
+            case "sse":
+                return new RelativeCostCriterion(conf.getDouble("convergence.sse.tolerance", 1e-4));
+            case "changed":
+                return new ReassignmentCriterion(conf.getDouble("convergence.changed.fraction", 1e-3));
+            case "time":
+                return new TimeBudgetCriterion(conf.getLong("convergence.time.budget", 3600) * 1000);
+            default:
+                throw new IllegalArgumentException("Unknown convergence criterion: " + name + " (expected shift, sse, changed or time)");
+        }
+    }
+
+    // Criteria selected by the job configuration: the run stops when any of the "convergence" criteria is satisfied
+    static ConvergenceCriterion create(Configuration conf, double threshold) {
+        String[] names = conf.getTrimmedStrings("convergence", "shift");
+        ConvergenceCriterion[] criteria = new ConvergenceCriterion[names.length];
+        for (int i = 0; i < names.length; i++)
+            criteria[i] = create(names[i], conf, threshold);
+        return result -> {
+            boolean converged = false;
+            for (ConvergenceCriterion criterion : criteria)
+                converged |= criterion.converged(result);
+            return converged;
+        };
+    }
+
+    // True if the mappers have to count the reassigned points (they need the centroids of the previous iteration for it)
+    static boolean tracksReassignments(Configuration conf) {
+        for (String name : conf.getTrimmedStrings("convergence", "shift"))
+            if ("changed".equals(name))
+                return true;
+        return false;
+    }
+}
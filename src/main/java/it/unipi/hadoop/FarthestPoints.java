@@ -0,0 +1,93 @@
+package it.unipi.hadoop;
+
+import java.util.Arrays;
+
+/*
+ Keeps the points with the largest squared distance from their centroid (i.e. with the highest contribution to the cost) seen so far.
+ The mappers track them while assigning the points and emit them under the key -1, the reducer of that key keeps the overall farthest ones,
+ and the driver uses them to re-seed the clusters that received no point in the same iteration (instead of aborting the whole run).
+ When they are exchanged as Points, the squared distance is stored as an extra (d+1-th) coordinate.
+ */
+public class FarthestPoints {
+    public static final int KEY = -1; // Key used to emit the candidates in the output of the mappers and of the reducers
+
+    private final int d;
+    private final double[][] points;
+    private final double[] distances;
+    private int size;
+    private int minIndex; // Position of the candidate with the smallest distance (the one replaced by a farther point)
+
+    public FarthestPoints(int capacity, int d) {
+        this.d = d;
+        points = new double[capacity][d];
+        distances = new double[capacity];
+    }
+
+    public void offer(double[] point, double distance) {
+        if (points.length == 0)
+            return;
+        if (size < points.length) {
+            System.arraycopy(point, 0, points[size], 0, d);
+            distances[size++] = distance;
+        } else if (distance > distances[minIndex]) {
+            System.arraycopy(point, 0, points[minIndex], 0, d);
+            distances[minIndex] = distance;
+        } else
+            return;
+        minIndex = 0;
+        for (int i = 1; i < size; i++)
+            if (distances[i] < distances[minIndex])
+                minIndex = i;
+    }
+
+    // True if a point at the given distance would be kept (lets the caller skip building the point otherwise)
+    public boolean accepts(double distance) {
+        return size < points.length || (points.length > 0 && distance > distances[minIndex]);
+    }
+
+    // Offers a candidate encoded as a Point (d coordinates followed by the squared distance)
+    public void offer(Point encoded) {
+        double[] coordinates = encoded.getCoordinates();
+        offer(coordinates, coordinates[d]);
+    }
+
+    public void merge(FarthestPoints other) {
+        for (int i = 0; i < other.size; i++)
+            offer(other.points[i], other.distances[i]);
+    }
+
+    // Returns the candidates encoded as Points, from the farthest to the closest one
+    public Point[] toPoints() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(distances[b], distances[a]));
+        Point[] encoded = new Point[size];
+        for (int i = 0; i < size; i++) {
+            double[] coordinates = Arrays.copyOf(points[order[i]], d + 1);
+            coordinates[d] = distances[order[i]];
+            encoded[i] = new Point();
+            encoded[i].setCoordinates(coordinates);
+        }
+        return encoded;
+    }
+
+    /*
+     Replaces each centroid with no assigned points (numberOfPoints = 0, NaN coordinates) with the next farthest candidate, so that
+     the run can go on. Returns the number of re-seeded centroids; if the candidates are not enough the NaN_ERROR is raised as before.
+     */
+    public int reseedEmptyClusters(Point[] centroids) {
+        Point[] candidates = toPoints();
+        int used = 0;
+        for (int i = 0; i < centroids.length; i++) {
+            if (centroids[i].getNumberOfPoints() > 0)
+                continue;
+            if (used == candidates.length)
+                throw new IllegalArgumentException("NaN_ERROR");
+            double[] candidate = candidates[used++].getCoordinates();
+            centroids[i].setCoordinates(Arrays.copyOf(candidate, d));
+            System.out.println("Cluster " + i + " had no points: re-seeded from a point at squared distance " + candidate[d] + " from its centroid");
+        }
+        return used;
+    }
+}
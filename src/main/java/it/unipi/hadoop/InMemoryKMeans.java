@@ -0,0 +1,328 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ Alternative execution mode ("execution" = "inmemory"): instead of submitting one MapReduce job per iteration, the dataset is read
+ once into a columnar cache (one double[] per coordinate) and all the iterations run in this process, split among "threads" worker threads.
+ Each worker assigns a contiguous range of points and accumulates its own partial sums (as the mappers do with in-mapper combining),
+ then the partial sums are merged and divided as in KMeansReducer, and empty clusters are re-seeded from the farthest points. The run stops
+ according to the convergence criteria of the driver; the assignment of every point is kept, so the reassigned points are counted exactly.
+ With "convergence.freeze" each point also keeps a lower bound of its distance to the second closest centroid (Hamerly's algorithm):
+ after the first iteration a point is compared with all the centroids only if its distance to its own centroid exceeds that bound (decreased by
+ how much the other centroids moved) and half the distance from its centroid to the closest other one; the frozen centroids do not move, so
+ the bounds of their points stay tight and most points cost a single distance.
+ This mode is meant for datasets that fit in the memory of a single node, where job startup and input parsing dominate the execution time.
+ */
+public class InMemoryKMeans {
+    private static final int BLOCK_SIZE = 256; // Points assigned together: the distances of a block to a centroid are computed in a tight loop over a column
+
+    private final Configuration conf;
+    private final int k;
+    private final int d;
+    private final int threads;
+    private static final double BOUND_MARGIN = 1 + 1e-9; // The bounds are tested with a small margin, so that rounding cannot skip a point that has to move
+
+    private double[][] columns; // columns[j][i] is the j-th coordinate of the i-th point
+    private int size; // Number of points loaded
+    private int[] assignments; // Centroid of each point in the last iteration (-1 before the first one)
+    private double[] lowerBounds; // Lower bound of the distance (not squared) of each point to its second closest centroid ("convergence.freeze" only)
+    private boolean[] frozen; // Centroids frozen by "convergence.freeze" (null if disabled)
+    private double cost; // Cost of the last iteration
+    private long reassigned; // Points assigned to a different centroid by the last iteration
+    private long skipped; // Points assigned by the bounds alone in the last iteration
+
+    public InMemoryKMeans(Configuration conf, int k, int d, int expectedPoints) {
+        this.conf = conf;
+        this.k = k;
+        this.d = d;
+        this.threads = Math.max(1, conf.getInt("threads", 1));
+        columns = new double[d][Math.max(expectedPoints, 16)];
+    }
+
+    // Reads all the points of the input (a file or a directory of files) into the columnar cache
+    public void load(Path input) throws IOException {
+        long start = System.currentTimeMillis();
+        FileSystem fs = input.getFileSystem(conf);
+        PointParser parser = PointParser.create(conf);
+        double[] coordinates = new double[d];
+        Text line = new Text();
+        for (FileStatus status : listInputFiles(fs, input)) {
+            try (FSDataInputStream in = fs.open(status.getPath())) {
+                LineReader reader = new LineReader(in, conf);
+                while (reader.readLine(line) > 0) {
+                    parser.parse(line, coordinates);
+                    append(coordinates);
+                }
+            }
+        }
+        System.out.println("Loaded " + size + " points in memory in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static List<FileStatus> listInputFiles(FileSystem fs, Path input) throws IOException {
+        List<FileStatus> files = new ArrayList<>();
+        for (FileStatus status : fs.listStatus(input)) {
+            String name = status.getPath().getName();
+            if (status.isFile() && !name.startsWith("_") && !name.startsWith(".") // Same hidden files filter of FileInputFormat
+                    && !name.endsWith("._COPYING_")) // File still being written by "hdfs dfs -put" (renamed when complete)
+                files.add(status);
+        }
+        return files;
+    }
+
+    private void append(double[] coordinates) {
+        if (size == columns[0].length)
+            for (int j = 0; j < d; j++)
+                columns[j] = Arrays.copyOf(columns[j], size * 2);
+        for (int j = 0; j < d; j++)
+            columns[j][size] = coordinates[j];
+        size++;
+    }
+
+    /*
+     Runs at most maxIterations iterations starting from the given centroids, which are updated in place, until the criterion is satisfied.
+     Returns the number of executed iterations.
+     */
+    public int run(Point[] centroids, int maxIterations, ConvergenceCriterion criterion) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Point[] oldCentroids = new Point[k];
+            assignments = new int[size];
+            Arrays.fill(assignments, -1);
+            if (conf.getBoolean("convergence.freeze", false)) {
+                frozen = new boolean[k];
+                lowerBounds = new double[size];
+            }
+            double[] shifts = null; // Distance (not squared) moved by each centroid in the last iteration, used to update the bounds
+            long runStart = System.currentTimeMillis();
+            int iteration = 0;
+            while (iteration++ < maxIterations) {
+                long start = System.currentTimeMillis();
+                System.arraycopy(centroids, 0, oldCentroids, 0, k);
+                System.arraycopy(computeCentroids(centroids, shifts, executor), 0, centroids, 0, k);
+                long end = System.currentTimeMillis();
+                System.out.println("########################################################################## ITERATION " + iteration + " COMPLETED IN " + (end - start) + " ms ##########################################################################");
+                for (int i = 0; i < k; i++)
+                    System.out.println(centroids[i]);
+                System.out.println("#########################################################################################################################################################################");
+                if (frozen != null) {
+                    System.out.println("Points assigned by the bounds: " + skipped + " of " + size);
+                    KMeansClustering.freezeConvergedCentroids(oldCentroids, centroids, frozen);
+                    shifts = new double[k];
+                    for (int c = 0; c < k; c++)
+                        shifts[c] = Math.sqrt(oldCentroids[c].calculateDistanceSquared(centroids[c]));
+                }
+                if (criterion.converged(new IterationResult(iteration, oldCentroids, centroids, cost, size, iteration > 1 ? reassigned : -1, end - runStart, end - start)))
+                    break;
+            }
+            return Math.min(iteration, maxIterations);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /*
+     One iteration: every worker assigns its range of points, then the partial sums are merged (in a fixed order) and divided.
+     With the shifts of the last iteration (bounds enabled) the points are assigned by assignBounded, otherwise by a full scan.
+     */
+    private Point[] computeCentroids(Point[] centroids, double[] shifts, ExecutorService executor) throws InterruptedException, ExecutionException {
+        double[] flatCentroids = new double[k * d]; // Row-major copy of the centroids
+        for (int c = 0; c < k; c++)
+            System.arraycopy(centroids[c].getCoordinates(), 0, flatCentroids, c * d, d);
+        double[] halfSeparations = shifts == null ? null : halfSeparations(centroids);
+        List<Future<Partial>> partials = new ArrayList<>();
+        int rangeSize = (size + threads - 1) / threads;
+        for (int from = 0; from < size; from += rangeSize) {
+            int start = from, end = Math.min(size, from + rangeSize);
+            partials.add(executor.submit(() -> shifts == null ? assignRange(flatCentroids, start, end) : assignBounded(flatCentroids, shifts, halfSeparations, start, end)));
+        }
+        Point[] newCentroids = new Point[k];
+        for (int c = 0; c < k; c++)
+            newCentroids[c] = new Point(d);
+        FarthestPoints farthestPoints = KMeansMapper.createFarthestPoints(conf);
+        cost = 0;
+        reassigned = 0;
+        skipped = 0;
+        for (Future<Partial> future : partials) {
+            Partial partial = future.get();
+            for (int c = 0; c < k; c++)
+                newCentroids[c].sumPoint(partial.sums[c]);
+            farthestPoints.merge(partial.farthestPoints);
+            cost += partial.cost;
+            reassigned += partial.reassigned;
+            skipped += partial.skipped;
+        }
+        for (int c = 0; c < k; c++)
+            newCentroids[c].divideByScalar();
+        if (frozen != null)
+            KMeansClustering.pinFrozenCentroids(centroids, newCentroids, frozen);
+        farthestPoints.reseedEmptyClusters(newCentroids); // As in the MapReduce driver, empty clusters are re-seeded from the farthest points
+        return newCentroids;
+    }
+
+    /*
+     Assigns the points in [from, to) and returns their sums per cluster. The distances are computed one block of points at a time:
+     for each centroid the loop runs over the columns, so the innermost loop reads contiguous memory and can be vectorized by the JIT.
+     The squared distance of each point is accumulated coordinate by coordinate in the same order as Point.calculateDistanceSquared,
+     and ties are resolved towards the lowest index, so the assignments are the same of the MapReduce mappers.
+     With the bounds enabled the distance to the second closest centroid is tracked too, to initialize the lower bounds.
+     */
+    private Partial assignRange(double[] flatCentroids, int from, int to) {
+        Partial partial = new Partial();
+        Point[] sums = partial.sums;
+        double[] distances = new double[BLOCK_SIZE];
+        double[] minDistances = new double[BLOCK_SIZE];
+        double[] secondDistances = new double[BLOCK_SIZE];
+        int[] minIndexes = new int[BLOCK_SIZE];
+        double[] coordinates = new double[d];
+        for (int blockStart = from; blockStart < to; blockStart += BLOCK_SIZE) {
+            int blockSize = Math.min(BLOCK_SIZE, to - blockStart);
+            Arrays.fill(minDistances, 0, blockSize, Double.POSITIVE_INFINITY);
+            Arrays.fill(secondDistances, 0, blockSize, Double.POSITIVE_INFINITY);
+            Arrays.fill(minIndexes, 0, blockSize, 0);
+            for (int c = 0; c < k; c++) {
+                Arrays.fill(distances, 0, blockSize, 0);
+                for (int j = 0; j < d; j++) {
+                    double[] column = columns[j];
+                    double centroidCoordinate = flatCentroids[c * d + j];
+                    for (int i = 0; i < blockSize; i++) {
+                        double diff = centroidCoordinate - column[blockStart + i];
+                        distances[i] += diff * diff;
+                    }
+                }
+                if (lowerBounds == null) {
+                    for (int i = 0; i < blockSize; i++) {
+                        if (distances[i] < minDistances[i]) {
+                            minDistances[i] = distances[i];
+                            minIndexes[i] = c;
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < blockSize; i++) {
+                        if (distances[i] < minDistances[i]) {
+                            secondDistances[i] = minDistances[i];
+                            minDistances[i] = distances[i];
+                            minIndexes[i] = c;
+                        } else if (distances[i] < secondDistances[i])
+                            secondDistances[i] = distances[i];
+                    }
+                }
+            }
+            for (int i = 0; i < blockSize; i++) {
+                for (int j = 0; j < d; j++)
+                    coordinates[j] = columns[j][blockStart + i];
+                if (lowerBounds != null)
+                    lowerBounds[blockStart + i] = Math.sqrt(secondDistances[i]);
+                assign(partial, blockStart + i, coordinates, minIndexes[i], minDistances[i]);
+            }
+        }
+        return partial;
+    }
+
+    /*
+     Assigns the points in [from, to) using the bounds: the lower bound of each point is decreased by the largest shift of the centroids
+     other than its own, and the point keeps its centroid (a single distance computed, the one to its own centroid) if that distance is
+     below the lower bound or half the distance from its centroid to the closest other one. Otherwise all the distances are computed.
+     */
+    private Partial assignBounded(double[] flatCentroids, double[] shifts, double[] halfSeparations, int from, int to) {
+        Partial partial = new Partial();
+        double[] coordinates = new double[d];
+        int maxShiftIndex = 0; // Largest and second largest shift: the largest one among the other centroids is one of the two
+        for (int c = 1; c < k; c++)
+            if (shifts[c] > shifts[maxShiftIndex])
+                maxShiftIndex = c;
+        double secondMaxShift = 0;
+        for (int c = 0; c < k; c++)
+            if (c != maxShiftIndex)
+                secondMaxShift = Math.max(secondMaxShift, shifts[c]);
+        for (int i = from; i < to; i++) {
+            for (int j = 0; j < d; j++)
+                coordinates[j] = columns[j][i];
+            int nearest = assignments[i];
+            double lower = lowerBounds[i] - (nearest == maxShiftIndex ? secondMaxShift : shifts[maxShiftIndex]);
+            double minDistance = squaredDistance(coordinates, flatCentroids, nearest);
+            if (Math.sqrt(minDistance) * BOUND_MARGIN < Math.max(lower, halfSeparations[nearest])) {
+                lowerBounds[i] = lower;
+                partial.skipped++;
+            } else {
+                double secondDistance = Double.POSITIVE_INFINITY;
+                minDistance = Double.POSITIVE_INFINITY;
+                for (int c = 0; c < k; c++) {
+                    double distance = squaredDistance(coordinates, flatCentroids, c);
+                    if (distance < minDistance) {
+                        secondDistance = minDistance;
+                        minDistance = distance;
+                        nearest = c;
+                    } else if (distance < secondDistance)
+                        secondDistance = distance;
+                }
+                lowerBounds[i] = Math.sqrt(secondDistance);
+            }
+            assign(partial, i, coordinates, nearest, minDistance);
+        }
+        return partial;
+    }
+
+    // Adds the point to the sums of its centroid, records its assignment and offers it as a farthest point
+    private void assign(Partial partial, int point, double[] coordinates, int nearest, double distance) {
+        partial.sums[nearest].sumCoordinates(coordinates);
+        partial.farthestPoints.offer(coordinates, distance);
+        partial.cost += distance;
+        if (assignments[point] >= 0 && assignments[point] != nearest)
+            partial.reassigned++;
+        assignments[point] = nearest;
+    }
+
+    // Same order of the operations of the block scan, so the distances are exactly the same
+    private double squaredDistance(double[] coordinates, double[] flatCentroids, int centroid) {
+        double distance = 0;
+        for (int j = 0, offset = centroid * d; j < d; j++) {
+            double diff = flatCentroids[offset + j] - coordinates[j];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    // For each centroid, half the distance (not squared) to the closest other centroid
+    private double[] halfSeparations(Point[] centroids) {
+        double[] separations = new double[k];
+        Arrays.fill(separations, Double.POSITIVE_INFINITY);
+        for (int a = 0; a < k; a++)
+            for (int b = 0; b < a; b++) {
+                double distance = centroids[a].calculateDistanceSquared(centroids[b]);
+                separations[a] = Math.min(separations[a], distance);
+                separations[b] = Math.min(separations[b], distance);
+            }
+        for (int c = 0; c < k; c++)
+            separations[c] = Math.sqrt(separations[c]) / 2;
+        return separations;
+    }
+
+    private class Partial { // Result of a worker: the sums per cluster, the farthest points and the statistics of its range
+        private final Point[] sums = new Point[k];
+        private final FarthestPoints farthestPoints = KMeansMapper.createFarthestPoints(conf);
+        private double cost;
+        private long reassigned;
+        private long skipped;
+
+        Partial() {
+            for (int c = 0; c < k; c++)
+                sums[c] = new Point(d);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ Binary cache of the input dataset ("cache" = true in the configuration). Before the first iteration the CSV input is converted
+ by a map-only job into fixed-width binary records (PointOutputFormat), so that all the iterations read it through PointInputFormat
+ without any text parsing. The cache is stored in "cache.path" (by default next to the input, with the ".cache" suffix) together with
+ a signature of the input (dimensionality, number of files, total length and last modification time): a later run reuses the cache
+ as long as the signature matches, otherwise the cache is rebuilt.
+ With the "sparse" encoding the records have a variable length, so the cache is a SequenceFile of (offset, SparsePoint) records
+ (splittable thanks to its sync markers), read with SequenceFileInputFormat.
+ */
+public class InputCache {
+    private static final String SIGNATURE_FILE = "_SIGNATURE";
+
+    // Returns the path of an up-to-date binary cache of the input, converting the input if needed
+    public static Path prepare(Configuration conf, Path input) throws IOException, InterruptedException, ClassNotFoundException {
+        int d = conf.getInt("d", 2);
+        boolean sparse = PointParser.SPARSE.equals(PointParser.getEncoding(conf));
+        Path cache = new Path(conf.get("cache.path", input.toString() + ".cache"));
+        FileSystem fs = cache.getFileSystem(conf);
+        String signature = computeSignature(conf, input, d);
+        Path signatureFile = new Path(cache, SIGNATURE_FILE);
+        if (fs.exists(signatureFile) && signature.equals(readSignature(fs, signatureFile))) {
+            System.out.println("Reusing the binary cache of the input in " + cache);
+            return cache;
+        }
+        fs.delete(cache, true); // Stale or incomplete cache
+        long start = System.currentTimeMillis();
+        Job job = Job.getInstance(conf, "kmeansclustering-cache");
+        job.setJarByClass(InputCache.class);
+        job.setMapperClass(ConversionMapper.class);
+        job.setNumReduceTasks(0); // Map-only: each input split becomes one binary file
+        job.setInputFormatClass(TextInputFormat.class);
+        if (sparse) {
+            job.setOutputKeyClass(LongWritable.class);
+            job.setOutputValueClass(SparsePoint.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        } else {
+            job.setOutputKeyClass(NullWritable.class);
+            job.setOutputValueClass(Point.class);
+            job.setOutputFormatClass(PointOutputFormat.class);
+        }
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, cache);
+        if (!job.waitForCompletion(true))
+            throw new IOException("Conversion of the input to the binary cache failed");
+        try (FSDataOutputStream out = fs.create(signatureFile, true)) { // Written last: a cache without signature is never reused
+            out.write(signature.getBytes(StandardCharsets.UTF_8));
+        }
+        System.out.println("Binary cache of the input written in " + cache + " in " + (System.currentTimeMillis() - start) + " ms");
+        return cache;
+    }
+
+    private static String computeSignature(Configuration conf, Path input, int d) throws IOException {
+        FileSystem fs = input.getFileSystem(conf);
+        long length = 0, lastModification = 0;
+        int files = 0;
+        for (FileStatus status : InMemoryKMeans.listInputFiles(fs, input)) {
+            length += status.getLen();
+            lastModification = Math.max(lastModification, status.getModificationTime());
+            files++;
+        }
+        return "d=" + d + ",encoding=" + PointParser.getEncoding(conf) + ",files=" + files + ",length=" + length + ",modified=" + lastModification;
+    }
+
+    private static String readSignature(FileSystem fs, Path signatureFile) throws IOException {
+        try (FSDataInputStream in = fs.open(signatureFile)) {
+            byte[] bytes = new byte[(int) fs.getFileStatus(signatureFile).getLen()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Parses each line (with the same parser and checks of KMeansMapper) and writes it as a binary record
+    public static class ConversionMapper extends Mapper<LongWritable, Text, Writable, Writable> {
+        private PointParser parser;
+        private final Point point = new Point();
+        private SparsePoint sparsePoint; // Sparse encoding only
+
+        @Override
+        public void setup(Context context) {
+            int d = context.getConfiguration().getInt("d", 2);
+            parser = PointParser.create(context.getConfiguration());
+            point.setCoordinates(new double[d]);
+            if (PointParser.SPARSE.equals(PointParser.getEncoding(context.getConfiguration())))
+                sparsePoint = new SparsePoint();
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            if (sparsePoint != null) {
+                parser.parseSparse(value, sparsePoint);
+                context.write(key, sparsePoint);
+                return;
+            }
+            parser.parse(value, point.getCoordinates());
+            context.write(NullWritable.get(), point);
+        }
+    }
+}
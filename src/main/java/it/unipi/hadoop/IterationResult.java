@@ -0,0 +1,29 @@
+package it.unipi.hadoop;
+
+/*
+ What the convergence criteria know about a completed iteration. The cost is the sum of the squared distances of the points from
+ the centroid they were assigned to (the centroids the iteration started from); reassigned is the number of points assigned to a
+ different centroid than in the previous iteration, or -1 when it is not known (first iteration, or not tracked). In the mini-batch
+ mode both refer to the points of the batch only.
+ */
+public class IterationResult {
+    public final int iteration;
+    public final Point[] oldCentroids;
+    public final Point[] newCentroids;
+    public final double cost;
+    public final long assigned; // Number of points assigned by the iteration
+    public final long reassigned;
+    public final long elapsed; // Milliseconds from the start of the first iteration to the end of this one
+    public final long duration; // Milliseconds taken by this iteration
+
+    public IterationResult(int iteration, Point[] oldCentroids, Point[] newCentroids, double cost, long assigned, long reassigned, long elapsed, long duration) {
+        this.iteration = iteration;
+        this.oldCentroids = oldCentroids;
+        this.newCentroids = newCentroids;
+        this.cost = cost;
+        this.assigned = assigned;
+        this.reassigned = reassigned;
+        this.elapsed = elapsed;
+        this.duration = duration;
+    }
+}
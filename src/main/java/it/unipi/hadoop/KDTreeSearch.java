@@ -0,0 +1,112 @@
+package it.unipi.hadoop;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ KD-tree over the centroids, built once per map task. Each node stores one centroid and splits its subtree on the coordinate with
+ the largest spread (the node centroid is the median on that coordinate). The search descends first into the side of the point,
+ and visits the other side only if the distance from the point to the splitting hyperplane is not larger than the best distance so far.
+ Subtrees at exactly the best distance are still visited and ties are resolved towards the lowest index, so the result is always
+ the same as the one of the linear scan. The tree pays off for large k and moderate d (for high d it degrades to an almost full scan).
+ */
+public class KDTreeSearch implements NearestCentroidSearch {
+    private final Point[] centroids;
+    private final int[] nodeCentroid; // Index of the centroid stored in each node (the nodes are laid out as in a sorted array)
+    private final int[] nodeAxis; // Splitting coordinate of each node (-1 for the leaves)
+    private final ThreadLocal<Candidate> candidates = ThreadLocal.withInitial(Candidate::new); // Reused search state (one per thread)
+
+    public KDTreeSearch(Point[] centroids) {
+        int k = centroids.length;
+        this.centroids = centroids;
+        nodeCentroid = new int[k];
+        nodeAxis = new int[k];
+        Integer[] indexes = new Integer[k];
+        for (int i = 0; i < k; i++)
+            indexes[i] = i;
+        build(indexes, 0, k);
+        for (int i = 0; i < k; i++)
+            nodeCentroid[i] = indexes[i];
+    }
+
+    // The subtree of the range [from, to) is rooted in the middle element, the left and right halves are its children
+    private void build(Integer[] indexes, int from, int to) {
+        if (to - from <= 0)
+            return;
+        int middle = (from + to) >>> 1;
+        if (to - from == 1) {
+            nodeAxis[middle] = -1;
+            return;
+        }
+        int axis = widestCoordinate(indexes, from, to);
+        Arrays.sort(indexes, from, to, Comparator.comparingDouble(i -> centroids[i].getCoordinates()[axis]));
+        nodeAxis[middle] = axis;
+        build(indexes, from, middle);
+        build(indexes, middle + 1, to);
+    }
+
+    private int widestCoordinate(Integer[] indexes, int from, int to) {
+        int d = centroids[indexes[from]].getCoordinates().length;
+        int axis = 0;
+        double maxSpread = -1;
+        for (int j = 0; j < d; j++) {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                double value = centroids[indexes[i]].getCoordinates()[j];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > maxSpread) {
+                maxSpread = max - min;
+                axis = j;
+            }
+        }
+        return axis;
+    }
+
+    @Override
+    public int nearest(double[] point, long[] distanceCounts, double[] minDistance) {
+        Candidate best = candidates.get();
+        best.distance = Double.POSITIVE_INFINITY;
+        best.index = Integer.MAX_VALUE;
+        best.computed = 0;
+        search(point, 0, centroids.length, best);
+        distanceCounts[0] += best.computed;
+        distanceCounts[1] += centroids.length - best.computed;
+        minDistance[0] = best.distance;
+        return best.index;
+    }
+
+    private void search(double[] point, int from, int to, Candidate best) {
+        if (to - from <= 0)
+            return;
+        int middle = (from + to) >>> 1;
+        int index = nodeCentroid[middle];
+        double distance = centroids[index].calculateDistanceSquared(point);
+        best.computed++;
+        if (distance < best.distance || (distance == best.distance && index < best.index)) {
+            best.distance = distance;
+            best.index = index;
+        }
+        int axis = nodeAxis[middle];
+        if (axis < 0)
+            return;
+        double diff = point[axis] - centroids[index].getCoordinates()[axis];
+        // The left half holds coordinates <= the splitting value, the right half coordinates >= the splitting value
+        if (diff < 0) {
+            search(point, from, middle, best);
+            if (diff * diff <= best.distance)
+                search(point, middle + 1, to, best);
+        } else {
+            search(point, middle + 1, to, best);
+            if (diff * diff <= best.distance)
+                search(point, from, middle, best);
+        }
+    }
+
+    private static class Candidate { // State of a single search (kept out of the tree so that the tree can be shared among threads)
+        private double distance;
+        private int index;
+        private int computed;
+    }
+}
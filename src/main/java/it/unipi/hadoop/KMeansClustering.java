@@ -3,10 +3,15 @@ package it.unipi.hadoop;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.*;
 import java.util.*;
@@ -21,44 +26,119 @@ public class KMeansClustering {
     private static double threshold;
     private static int maxIterations;
     private static int reducers;
-    private static final String CENTROIDS_FILE = "centroids.txt";
+    private static boolean miniBatch; // true if each iteration processes only a random sample of the input ("minibatch.fraction" < 1)
+    private static long[] clusterCounts; // Number of points assigned to each centroid in the last iteration (over all the iterations so far in the mini-batch and streaming modes)
+    private static FarthestPoints farthestPoints; // Candidates for re-seeding the empty clusters, read from the output of the last job
+    private static double cost; // Sum of the squared distances of the points from their nearest centroid, read from the output of the last job
+    private static Path runDirectory; // Namespace of the files of this run (e.g. the centroids shipped to the mappers)
 
     public static void main(String[] args) throws Exception {
         final Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs(); // Generic options (e.g. "-D threads=8", "-D execution=inmemory") are stored in conf
         parseInput(args);
         conf.setInt("k", k); // We add k to the configuration because it is needed by the mapper task
         conf.setInt("d", d); // We add d to the configuration because it is needed by the mapper task
+        conf.setInt("threads", Math.max(1, conf.getInt("threads", 1))); // Number of worker threads used by each map task
+        if (conf.getBoolean("convergence.freeze", false) && !"inmemory".equals(conf.get("execution", "mapreduce"))) {
+            System.err.println("convergence.freeze requires execution=inmemory");
+            System.exit(1);
+        }
         Point[] oldCentroids = new Point[k];
         try {
-            initializeRandomCentroids(k, d, conf, args[6]);
+            if (conf.getBoolean("streaming", false)) { // Incremental mode: only the input files not summarized by the checkpoint yet are processed
+                runStreaming(conf, new Path(args[6]), args[7]);
+                return;
+            }
+            String[] inputFiles = listInputFiles(conf, new Path(args[6])); // Recorded in the checkpoints (a later streaming run skips them)
+            boolean inMemory = "inmemory".equals(conf.get("execution", "mapreduce"));
+            if (inMemory)
+                conf.setBoolean("cache", false); // The in-memory mode reads the input only once anyway
+            Path input = new Path(args[6]);
+            if (conf.getBoolean("cache", false)) // The jobs read the binary copy of the input (converted only if missing or stale)
+                input = InputCache.prepare(conf, input);
+            Checkpoint checkpoint = null;
+            if (conf.getBoolean("resume", false)) { // Continue from the state saved after the last completed iteration
+                checkpoint = Checkpoint.readLatest(conf, Checkpoint.getPath(args[7]), k, d);
+                if (checkpoint == null)
+                    System.out.println("No valid checkpoint found: starting from scratch");
+            }
+            int iteration = 0; // Used to count the iterations
+            clusterCounts = new long[k];
+            if (checkpoint != null) {
+                centroids = checkpoint.centroids;
+                clusterCounts = checkpoint.clusterCounts;
+                iteration = checkpoint.iteration;
+                System.out.println("Resuming after iteration " + iteration + " (error " + checkpoint.error + ")");
+                deleteIterationOutputs(conf, args[7], iteration); // Old outputs, and the output of the iteration that did not complete
+            } else if ("parallel".equals(conf.get("init", "random"))) // k-means|| seeding, computed by a few MapReduce jobs
+                centroids = KMeansParallelInitializer.initialize(conf, input, new Path(args[7] + "_init"));
+            else
+                initializeRandomCentroids(k, d, conf, args[6]);
             for (int i = 0; i < k; i++)
                 System.out.println(centroids[i]);
             System.out.println("#########################################################################################################################################################################");
 
+            runDirectory = new Path(conf.get("run.dir", ".kmeans/run_" + System.currentTimeMillis() + "_" + ThreadLocalRandom.current().nextInt(1 << 30)));
             long startTime = System.currentTimeMillis(); // Used to measure the execution time of the entire program
-            int iteration = 0; // Used to count the iterations
-            Job job;
-            while (iteration++ < maxIterations) {
-                writeCentroidsToFile(conf);
-                job = createJob(conf);
-                // Define I/O
-                FileInputFormat.addInputPath(job, new Path(args[6]));
-                String outputPath = args[7] + "_" + iteration;
-                FileOutputFormat.setOutputPath(job, new Path(outputPath));
-                if (job.waitForCompletion(true)) // It starts the job and waits for its completion
-                    System.out.println("########################################################################## ITERATION " + iteration + " COMPLETED! ##########################################################################");
-                else {
-                    System.out.println("########################################################################## ITERATION " + iteration + " FAILED! ##########################################################################");
-                    System.exit(1);
+            miniBatch = !inMemory && conf.getDouble("minibatch.fraction", 1) < 1;
+            ConvergenceCriterion criterion = ConvergenceCriterion.create(conf, threshold); // "convergence" (the centroid shift by default)
+            if (inMemory) { // Load the dataset once and run all the iterations in this process
+                InMemoryKMeans inMemoryKMeans = new InMemoryKMeans(conf, k, d, n);
+                inMemoryKMeans.load(new Path(args[6]));
+                iteration = inMemoryKMeans.run(centroids, maxIterations, criterion);
+            } else {
+                Job job;
+                MetricsReport report = new MetricsReport(conf, args[7], checkpoint != null);
+                while (iteration++ < maxIterations) {
+                    conf.setInt("iteration", iteration); // Used by the mappers to draw a different mini-batch at each iteration
+                    job = createJob(conf);
+                    // Ship the centroids to the mappers (followed by the ones of the previous iteration, if the mappers count the reassigned points)
+                    boolean reassignments = ConvergenceCriterion.tracksReassignments(conf) && oldCentroids[0] != null;
+                    Point[] shipped = centroids;
+                    if (reassignments) {
+                        shipped = Arrays.copyOf(centroids, 2 * k);
+                        System.arraycopy(oldCentroids, 0, shipped, k, k);
+                    }
+                    Centroids.distribute(job, shipped, new Path(runDirectory, "centroids_" + iteration + ".bin"));
+                    // Define I/O
+                    FileInputFormat.addInputPath(job, input);
+                    String outputPath = args[7] + "_" + iteration;
+                    FileOutputFormat.setOutputPath(job, new Path(outputPath));
+                    long submitted = System.currentTimeMillis();
+                    MetricsReport.setSubmitTime(job, submitted);
+                    if (job.waitForCompletion(true)) // It starts the job and waits for its completion
+                        System.out.println("########################################################################## ITERATION " + iteration + " COMPLETED! ##########################################################################");
+                    else {
+                        System.out.println("########################################################################## ITERATION " + iteration + " FAILED! ##########################################################################");
+                        System.exit(1);
+                    }
+                    long completed = System.currentTimeMillis();
+                    System.arraycopy(centroids, 0, oldCentroids, 0, k);
+                    Point[] computedCentroids = readComputedCentroids(outputPath, conf); // Read the centroids computed by the current MapReduce job execution
+                    if (miniBatch)
+                        updateMiniBatchCentroids(computedCentroids);
+                    else
+                        setComputedCentroids(computedCentroids);
+                    for (int i = 0; i < k; i++)
+                        System.out.println(centroids[i]);
+                    System.out.println("#########################################################################################################################################################################");
+                    // Save the state of the completed iteration (a crash from now on can be recovered with "-D resume=true")
+                    double error = maxCentroidShift(oldCentroids, centroids);
+                    new Checkpoint(iteration, error, centroids.clone(), clusterCounts.clone(), inputFiles).write(conf, Checkpoint.getPath(args[7]));
+                    long updated = System.currentTimeMillis();
+                    report.add(iteration, job, submitted, completed, updated, error, cost, k);
+                    report.write(conf);
+                    if (conf.getBoolean("cleanup", false)) // Only the output of the last iteration is kept
+                        deleteIterationOutputs(conf, args[7], iteration);
+                    long assigned = job.getCounters().findCounter(KMeansMapper.Counters.RECORDS_ASSIGNED).getValue();
+                    long reassigned = reassignments ? job.getCounters().findCounter(KMeansMapper.Counters.REASSIGNED_POINTS).getValue() : -1;
+                    if (criterion.converged(new IterationResult(iteration, oldCentroids, centroids, cost, assigned, reassigned, updated - startTime, updated - submitted)))
+                        break;
                 }
-                System.arraycopy(centroids, 0, oldCentroids, 0, k);
-                readComputedCentroids(reducers, outputPath, conf); // Read the centroids computed by the current MapReduce job execution
-                for (int i = 0; i < k; i++)
-                    System.out.println(centroids[i]);
-                System.out.println("#########################################################################################################################################################################");
-                if (checkThreshold(oldCentroids, centroids)) // error check
-                    break;
             }
+            if (miniBatch && conf.getBoolean("minibatch.finalcost", false)) // Full pass over the input to measure the quality of the approximate centroids
+                computeFinalCost(conf, input, new Path(args[7] + "_cost"));
+            runDirectory.getFileSystem(conf).delete(runDirectory, true);
             long executionTime = System.currentTimeMillis() - startTime;
             System.out.println("Execution time in ms: " + executionTime);
             for (int i = 0; i < k; i++)
@@ -75,7 +155,7 @@ public class KMeansClustering {
             }*/
 
         } catch (IllegalArgumentException e) {
-            if (e.getMessage().equals(("NaN_ERROR"))) // If this error occurs, it means that a centroid has no points near to it --> The program exits and the application must be  restarted
+            if (e.getMessage().equals(("NaN_ERROR"))) // If this error occurs, there were more empty clusters than candidates to re-seed them (or a NaN in the input) --> The program exits and the application must be restarted
                 System.err.println("Bad values for centroids! Restart the application!");
             System.exit(1);
         }
@@ -92,7 +172,7 @@ public class KMeansClustering {
 
     private static void parseInput(String[] args) { // This method parses the strings passed by command line and performs some initializations
         if (args.length != 8) {
-            System.err.println("Usage: KMeansClustering <k> <d> <n> <threshold> <max_iterations> <reducers> <input> <output>");
+            System.err.println("Usage: KMeansClustering [-D threads=<t>] [-D search=linear|triangle|kdtree|blocked] [-D point.encoding=double|float|sparse] [-D shuffle=points|packed] [-D execution=mapreduce|inmemory] [-D convergence=shift,sse,changed,time] [-D convergence.freeze=true] [-D cache=true] [-D init=random|parallel] [-D minibatch.fraction=<f>] [-D resume=true] [-D cleanup=true] [-D streaming=true] <k> <d> <n> <threshold> <max_iterations> <reducers> <input> <output>");
             System.exit(1);
         }
         // print arguments
@@ -118,32 +198,130 @@ public class KMeansClustering {
         Job job = Job.getInstance(conf, "kmeansclustering");
         job.setJarByClass(KMeansClustering.class);
         // Set mapper and reducer
-        job.setMapperClass(KMeansMapper.class);
-        job.setReducerClass(KMeansReducer.class);
-        job.setNumReduceTasks(reducers);
-        // job.setMapOutputKeyClass(IntWritable.class); // This is not necessary because K2 and K3 are the same
-        // job.setMapOutputValueClass(Point.class);  // This is not necessary because V2 and V3 are the same
+        if (conf.getInt("threads", 1) > 1) // Split the input of each map task among several threads
+            job.setMapperClass(MultithreadedKMeansMapper.class);
+        else
+            job.setMapperClass(KMeansMapper.class);
+        if ("packed".equals(conf.get("shuffle", "points"))) { // One record per map task and reducer, the number of reducers depends on k and d
+            job.setReducerClass(PackedKMeansReducer.class);
+            job.setNumReduceTasks(PartialSums.chooseSlices(k, d, conf.getLong("packed.slice.size", 1 << 18)));
+            job.setMapOutputValueClass(PartialSums.class); // V2
+        } else {
+            job.setReducerClass(KMeansReducer.class);
+            job.setNumReduceTasks(reducers);
+            job.setMapOutputValueClass(Point.class); // V2
+        }
+        job.setMapOutputKeyClass(IntWritable.class); // K2
         // Define reducer's output key-value
         job.setOutputKeyClass(IntWritable.class); // K3
         job.setOutputValueClass(Point.class); // V3
+        // The centroids are written in binary form, together with the number of points assigned to them
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
         // Set input format
-        job.setInputFormatClass(TextInputFormat.class); // Input key Type: LongWritable (K1); Input value type: Text (V1)
+        setInputFormat(job, conf);
         return job;
     }
 
-    // The following method reads the centroid computed by a MapReduce job form the proper output directory
-    private static void readComputedCentroids(int nreducers, String outputPath, Configuration conf) throws UnsupportedFileSystemException {
-        for (int i = 0; i < nreducers; i++) {
-            // Build output path of output file
-            String path = outputPath + "/part-r-" + String.format("%05d", i);
-            // Read centroids from the output file: format of each line: "index   point"
-            FileContext fc = FileContext.getFileContext(conf);
-            Path filePath = new Path(path);
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fc.open(filePath)))) {
+    // The dataset is read as text lines or, when the binary cache of the input is enabled, as already decoded points
+    static void setInputFormat(Job job, Configuration conf) {
+        if (conf.getBoolean("cache", false) && PointParser.SPARSE.equals(PointParser.getEncoding(conf)))
+            job.setInputFormatClass(SequenceFileInputFormat.class); // Input key Type: LongWritable (K1); Input value type: SparsePoint (V1)
+        else if (conf.getBoolean("cache", false))
+            job.setInputFormatClass(PointInputFormat.class); // Input key Type: LongWritable (K1); Input value type: Point (V1)
+        else
+            job.setInputFormatClass(TextInputFormat.class); // Input key Type: LongWritable (K1); Input value type: Text (V1)
+    }
+
+    // The following method reads the centroids computed by a MapReduce job from the proper output directory (one file per reducer)
+    private static Point[] readComputedCentroids(String outputPath, Configuration conf) throws IOException {
+        Point[] computedCentroids = new Point[k];
+        farthestPoints = KMeansMapper.createFarthestPoints(conf);
+        cost = 0;
+        FileSystem fs = FileSystem.get(new Path(outputPath).toUri(), conf);
+        for (FileStatus status : fs.globStatus(new Path(outputPath, "part-r-*"))) {
+            // Each record is "index, centroid", the centroid also holds the number of points assigned to it
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                IntWritable index = new IntWritable();
+                Point centroid = new Point();
+                while (reader.next(index, centroid)) {
+                    if (index.get() == FarthestPoints.KEY) { // Candidate for re-seeding an empty cluster
+                        farthestPoints.offer(centroid);
+                        continue;
+                    }
+                    if (index.get() == KMeansMapper.COST_KEY) {
+                        cost += centroid.getCoordinates()[0];
+                        continue;
+                    }
+                    computedCentroids[index.get()] = centroid;
+                    centroid = new Point();
+                }
+            }
+        }
+        return computedCentroids;
+    }
+
+    /*
+     A centroid with no near point (NaN coordinates) is replaced by one of the points with the highest contribution to the cost,
+     so the run goes on without a restart. The NaN_ERROR is raised only if there are more empty clusters than candidates.
+     */
+    private static void setComputedCentroids(Point[] computedCentroids) {
+        for (int i = 0; i < k; i++)
+            clusterCounts[i] = computedCentroids[i].getNumberOfPoints();
+        farthestPoints.reseedEmptyClusters(computedCentroids);
+        System.arraycopy(computedCentroids, 0, centroids, 0, k);
+    }
+
+    /*
+     Mini-batch update (Sculley, "Web-scale k-means clustering"): each centroid moves towards the mean of the points of the batch
+     assigned to it, with a per-cluster learning rate m / v, where m is the number of points of the batch assigned to the centroid and
+     v the number of points assigned to it in all the iterations so far. Centroids without points in the batch are left unchanged.
+     */
+    private static void updateMiniBatchCentroids(Point[] batchMeans) {
+        for (int i = 0; i < k; i++) {
+            int batchPoints = batchMeans[i].getNumberOfPoints();
+            if (batchPoints == 0)
+                continue;
+            clusterCounts[i] += batchPoints;
+            double learningRate = (double) batchPoints / clusterCounts[i];
+            double[] updated = centroids[i].getCoordinates().clone(); // The old centroid is still needed by the convergence criteria
+            double[] mean = batchMeans[i].getCoordinates();
+            for (int j = 0; j < d; j++)
+                updated[j] += learningRate * (mean[j] - updated[j]);
+            centroids[i] = new Point();
+            centroids[i].setCoordinates(updated);
+        }
+    }
+
+    // Computes the cost (sum of the squared distances of the points from their centroid) and the cluster sizes over the whole input
+    private static void computeFinalCost(Configuration conf, Path input, Path workDir) throws IOException, InterruptedException, ClassNotFoundException {
+        FileSystem fs = workDir.getFileSystem(conf);
+        fs.delete(workDir, true);
+        double[] result = KMeansParallelInitializer.computeCostAndWeights(conf, input, centroids, new Path(runDirectory, "centroids_final.bin"), workDir);
+        System.out.println("Cost over the whole input: " + result[k]);
+        for (int i = 0; i < k; i++)
+            System.out.println("Points in cluster " + i + ": " + (long) result[i]);
+        fs.delete(workDir, true);
+    }
+
+    // The following method is used to randomly initialize the centroids from the points in the dataset (a file, or the files of a directory one after the other)
+    private static void initializeRandomCentroids(int k, int d, Configuration conf, String input) throws IOException {
+        Path inputPath = new Path(input);
+        FileSystem fs = inputPath.getFileSystem(conf);
+        int centroidIndex = 0, point = 0;
+
+        int[] randomIndexes = generateIndex();
+        PointParser parser = PointParser.create(conf); // Lines in the encoding of the job ("point.encoding")
+
+        for (FileStatus status : InMemoryKMeans.listInputFiles(fs, inputPath)) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath())))) {
                 String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] splits = line.split("\t");
-                    centroids[new Integer(splits[0])] = new Point(splits[1], d);
+                while ((line = reader.readLine()) != null && centroidIndex < k) {
+                    if (randomIndexes[centroidIndex] == point++) {
+                        double[] coordinates = new double[d];
+                        parser.parse(new Text(line), coordinates);
+                        centroids[centroidIndex] = new Point();
+                        centroids[centroidIndex++].setCoordinates(coordinates);
+                    }
                 }
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -151,53 +329,164 @@ public class KMeansClustering {
         }
     }
 
-    // This method saves the centroids on file in HDFS (used by the map task)
-    private static void writeCentroidsToFile(Configuration configuration) throws UnsupportedFileSystemException {
-        FileContext fc = FileContext.getFileContext(configuration);
-        Path filePath = new Path(CENTROIDS_FILE);
-        try (FSDataOutputStream fin = fc.create(filePath, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE))) {
-            for (Point centroid : centroids) {
-                fin.writeBytes(centroid.toString() + '\n');
+    // Fully qualified names of the files read by the jobs for the given input (a file or a directory)
+    private static String[] listInputFiles(Configuration conf, Path input) throws IOException {
+        return listInputFiles(conf, input, Long.MAX_VALUE);
+    }
+
+    // Same as above, without the files modified after the given time (they may still be growing)
+    private static String[] listInputFiles(Configuration conf, Path input, long modifiedBefore) throws IOException {
+        FileSystem fs = input.getFileSystem(conf);
+        if (!fs.exists(input))
+            return new String[0];
+        return InMemoryKMeans.listInputFiles(fs, input).stream().filter(status -> status.getModificationTime() <= modifiedBefore)
+                .map(status -> status.getPath().toString()).toArray(String[]::new);
+    }
+
+    /*
+     Streaming mode ("-D streaming=true"): the input is a directory where new files keep arriving. The centroids, their cluster sizes
+     and the names of the files already summarized by them are read from the checkpoint; each batch is a single MapReduce job over the
+     new files only, whose per-cluster means are merged with the current centroids weighted by the cluster sizes (the same update of the
+     mini-batch mode, which with sizes v and m gives (v * centroid + m * mean) / (v + m)), so the cost of a batch depends only on the new data.
+     After each batch the checkpoint is updated and the centroids are published to "<output>_centroids".
+     Without a checkpoint the centroids are initialized as usual ("init") from the files present, which then form the first batch
+     (starting from a batch run on the same output gives a fully converged model to start from). With "streaming.poll" = s > 0 the
+     driver checks the directory every s seconds instead of exiting when there are no new files.
+     A file is assumed to be complete, and is never read again, once it is picked by a batch. So files still being copied are skipped:
+     the "._COPYING_" files of "hdfs dfs -put", and any file modified in the last "streaming.settle" seconds (the poll interval by
+     default), which is picked by a later batch. Producers that append to a file after that delay must write it elsewhere and rename it.
+     */
+    private static void runStreaming(Configuration conf, Path input, String output) throws Exception {
+        conf.setBoolean("cache", false); // Every file is read only once
+        Path checkpointPath = Checkpoint.getPath(output);
+        Checkpoint checkpoint = Checkpoint.readLatest(conf, checkpointPath, k, d);
+        Set<String> processedFiles = new LinkedHashSet<>();
+        int batch = 0;
+        if (checkpoint != null) {
+            centroids = checkpoint.centroids;
+            clusterCounts = checkpoint.clusterCounts;
+            batch = checkpoint.iteration;
+            processedFiles.addAll(Arrays.asList(checkpoint.inputFiles));
+            System.out.println("Continuing from the checkpoint of iteration " + batch + " (" + processedFiles.size() + " files already processed)");
+        } else {
+            clusterCounts = new long[k];
+            if ("parallel".equals(conf.get("init", "random")))
+                centroids = KMeansParallelInitializer.initialize(conf, input, new Path(output + "_init"));
+            else
+                initializeRandomCentroids(k, d, conf, input.toString());
+        }
+        runDirectory = new Path(conf.get("run.dir", ".kmeans/run_" + System.currentTimeMillis() + "_" + ThreadLocalRandom.current().nextInt(1 << 30)));
+        long pollInterval = conf.getLong("streaming.poll", 0);
+        long settleTime = conf.getLong("streaming.settle", pollInterval) * 1000; // Files modified more recently are not picked yet
+        MetricsReport report = new MetricsReport(conf, output, checkpoint != null);
+        FileSystem fs = input.getFileSystem(conf);
+        while (true) {
+            List<String> newFiles = new ArrayList<>();
+            for (String file : listInputFiles(conf, input, System.currentTimeMillis() - settleTime))
+                if (!processedFiles.contains(file))
+                    newFiles.add(file);
+            if (newFiles.isEmpty()) {
+                if (pollInterval <= 0)
+                    break;
+                Thread.sleep(pollInterval * 1000);
+                continue;
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            long start = System.currentTimeMillis();
+            conf.setInt("iteration", ++batch);
+            Job job = createJob(conf);
+            Centroids.distribute(job, centroids, new Path(runDirectory, "centroids_" + batch + ".bin"));
+            for (String file : newFiles)
+                FileInputFormat.addInputPath(job, new Path(file));
+            String outputPath = output + "_" + batch;
+            fs.delete(new Path(outputPath), true); // Left by a batch that did not complete
+            FileOutputFormat.setOutputPath(job, new Path(outputPath));
+            long submitted = System.currentTimeMillis();
+            MetricsReport.setSubmitTime(job, submitted);
+            if (!job.waitForCompletion(true)) {
+                System.out.println("########################################################################## BATCH " + batch + " FAILED! ##########################################################################");
+                System.exit(1);
+            }
+            long completed = System.currentTimeMillis();
+            Point[] oldCentroids = centroids.clone();
+            updateMiniBatchCentroids(readComputedCentroids(outputPath, conf)); // Weighted merge of the means of the batch
+            processedFiles.addAll(newFiles);
+            double error = maxCentroidShift(oldCentroids, centroids);
+            new Checkpoint(batch, error, centroids.clone(), clusterCounts.clone(), processedFiles.toArray(new String[0])).write(conf, checkpointPath);
+            publishCentroids(conf, new Path(output + "_centroids"));
+            report.add(batch, job, submitted, completed, System.currentTimeMillis(), error, cost, k);
+            report.write(conf);
+            if (conf.getBoolean("cleanup", false))
+                deleteIterationOutputs(conf, output, batch);
+            System.out.println("########################################################################## BATCH " + batch + " (" + newFiles.size() + " new files) COMPLETED IN " + (System.currentTimeMillis() - start) + " ms ##########################################################################");
+            for (int i = 0; i < k; i++)
+                System.out.println(centroids[i]);
+            System.out.println("#########################################################################################################################################################################");
         }
+        fs.delete(runDirectory, true);
     }
 
-    // The following method is used to randomly initialize the centroids from the points in the dataset
-    private static void initializeRandomCentroids(int k, int d, Configuration conf, String input) throws UnsupportedFileSystemException {
-        FileContext fc = FileContext.getFileContext(conf);
-        Path filePath = new Path(input);
+    // Writes the current centroids as "index<TAB>centroid<TAB>cluster size" lines, replacing the previous version atomically
+    private static void publishCentroids(Configuration conf, Path path) throws IOException {
+        FileContext fc = FileContext.getFileContext(path.toUri(), conf);
+        Path temporary = path.suffix(".tmp");
+        try (FSDataOutputStream out = fc.create(temporary, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE))) {
+            for (int i = 0; i < k; i++)
+                out.writeBytes(i + "\t" + centroids[i] + "\t" + clusterCounts[i] + "\n");
+        }
+        fc.rename(temporary, path, Options.Rename.OVERWRITE);
+    }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fc.open(filePath)))) {
-            String line;
-            int centroidIndex = 0, point = 0;
+    // Largest squared distance between the old and the new position of a centroid (the error saved in the checkpoints)
+    private static double maxCentroidShift(Point[] oldCentroids, Point[] newCentroids) {
+        double maxError = 0;
+        for (int i = 0; i < oldCentroids.length; i++)
+            maxError = Math.max(maxError, oldCentroids[i].calculateDistanceSquared(newCentroids[i]));
+        return maxError;
+    }
 
-            int[] randomIndexes = generateIndex();
+    // Deletes the per-iteration output directories ("<output>_N") of all the iterations except the given one
+    private static void deleteIterationOutputs(Configuration conf, String output, int keptIteration) throws IOException {
+        Path outputPath = new Path(output);
+        FileSystem fs = outputPath.getFileSystem(conf);
+        FileStatus[] outputs = fs.globStatus(new Path(output + "_*"));
+        if (outputs == null)
+            return;
+        String prefix = outputPath.getName() + "_";
+        for (FileStatus status : outputs) {
+            String suffix = status.getPath().getName().substring(prefix.length());
+            if (status.isDirectory() && suffix.matches("\\d+") && Integer.parseInt(suffix) != keptIteration)
+                fs.delete(status.getPath(), true);
+        }
+    }
 
-            while ((line = reader.readLine()) != null && centroidIndex < k) {
-                if (randomIndexes[centroidIndex] == point++) {
-                    centroids[centroidIndex++] = new Point(line, d);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /*
+     "convergence.freeze": a centroid that moved less than the threshold (squared distance) is frozen, i.e. it keeps its position in
+     all the later iterations, so its shift is exactly 0 from then on. Freezing ignores the points that later move to or from the
+     cluster, so it trades some accuracy for fewer iterations and fewer distances (through the bounds of InMemoryKMeans). Supported by
+     the in-memory mode only, the driver rejects it otherwise: the mappers would still assign every point against all the centroids,
+     so freezing would save no work and only pin the centroids. Not saved in the checkpoint.
+     */
+    static void freezeConvergedCentroids(Point[] oldCentroids, Point[] newCentroids, boolean[] frozen) {
+        int count = 0;
+        for (int i = 0; i < frozen.length; i++) {
+            if (!frozen[i] && oldCentroids[i].calculateDistanceSquared(newCentroids[i]) <= threshold)
+                frozen[i] = true;
+            if (frozen[i])
+                count++;
         }
+        System.out.println("Frozen centroids: " + count + " of " + frozen.length);
     }
 
-    // This method checks if the change in the centroids between two subsequent iterations is under the threshold or not
-    public static boolean checkThreshold(Point[] oldCentroids, Point[] newCentroids) {
-        double error;
-        for (int i = 0; i < oldCentroids.length; i++) {
-            error = oldCentroids[i].calculateDistanceSquared(newCentroids[i]);
-            if (error > threshold) {
-                // saveErrorToFile(error, conf);
-                System.out.println("Error : " + error);
-                return false;
-            }
+    // Gives the frozen centroids back their previous position, before the update; a frozen centroid left without points is released (and re-seeded)
+    static void pinFrozenCentroids(Point[] oldCentroids, Point[] computedCentroids, boolean[] frozen) {
+        for (int i = 0; i < frozen.length; i++) {
+            if (!frozen[i])
+                continue;
+            if (computedCentroids[i].getNumberOfPoints() > 0)
+                computedCentroids[i].setCoordinates(oldCentroids[i].getCoordinates().clone());
+            else
+                frozen[i] = false;
         }
-        //saveErrorToFile(error, conf);
-        return true;
     }
 
     /*
@@ -1,93 +1,283 @@
 package it.unipi.hadoop;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.*;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.Mapper;
 
 import java.io.*;
-import java.util.EnumSet;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ The input value is a Text line (TextInputFormat) or, when the binary cache of the input is used, a Point already decoded by
+ PointInputFormat (a SparsePoint with the "sparse" encoding, whose points are assigned without expanding them to d coordinates).
+ The output value is a Point per cluster or, in the packed shuffle mode, a PartialSums per reducer.
+ */
+public class KMeansMapper extends Mapper<LongWritable, Writable, IntWritable, Writable> {
+    /*
+     Counters of the map tasks, collected by the driver in the metrics report: the distances computed and pruned by the nearest centroid
+     search, the records assigned (the mini-batch ones only), and the time spent parsing the records and assigning them (summed over the
+     threads of MultithreadedKMeansMapper, so it can exceed the duration of the task). With k up to "metrics.cluster.counters" (20 by
+     default, Hadoop limits the number of counters of a job) the size of every cluster is also published, in the CLUSTER_SIZES group.
+     MAP_TASKS and TASK_START_DELAY_MS (time from the submission of the job, "metrics.submit.time", to the setup of the task) give the
+     average startup latency of the map tasks. SEARCH_MISMATCHES counts the assignments that differ from the scalar scan ("search.validate").
+     REASSIGNED_POINTS counts the points whose nearest centroid changed since the previous iteration (only when the driver ships the
+     previous centroids too, for the "changed" convergence criterion); the distances computed to find them are counted apart, in
+     REASSIGNMENT_DISTANCES, so DISTANCES_COMPUTED and DISTANCES_PRUNED only measure the assignment.
+     */
+    public enum Counters {DISTANCES_COMPUTED, DISTANCES_PRUNED, RECORDS_ASSIGNED, PARSE_TIME_MS, ASSIGNMENT_TIME_MS, MAP_TASKS, TASK_START_DELAY_MS, SEARCH_MISMATCHES, REASSIGNED_POINTS, REASSIGNMENT_DISTANCES}
+    public static final String CLUSTER_SIZES = "Cluster sizes";
+    public static final int COST_KEY = -2; // Key of the cost of the task (a Point with a single coordinate), summed by the reducers
 
-public class KMeansMapper extends Mapper<LongWritable, Text, IntWritable, Point> {
     private Point[] centroids;
-    private Point[] cumulativePoints; // to accumulate the points associated with each centroid (each Point object counts internally the number of points "accumulated" in it)
-    private int k;
-    private int d;
-    private long time = 0; // Used for testing (to measure map function exection time)
-    private int counter;
+    protected FarthestPoints farthestPoints; // Farthest points from their centroid, used by the driver to re-seed empty clusters
+    protected Point[] cumulativePoints; // to accumulate the points associated with each centroid (each Point object counts internally the number of points "accumulated" in it)
+    protected int k;
+    protected int d;
+    private PointParser parser; // Streaming parser that reads the coordinates directly from the bytes of the input Text
+    private double[] coordinates; // Reused buffer holding the coordinates of the point currently processed by map()
+    private SparsePoint sparsePoint; // Reused buffer of the sparse encoding (null with the dense ones)
+    private double[] centroidNorms; // Squared norms of the centroids, used by the distances of the sparse points
+    private NearestCentroidSearch search; // Nearest centroid search strategy ("search" property: linear, triangle, kdtree or blocked)
+    private Point[] previousCentroids; // Centroids of the previous iteration (null if the reassignments are not tracked)
+    private NearestCentroidSearch previousSearch; // Never validated: its results are not assignments
+    private double[] previousSeparations; // For each previous centroid, the squared distance to the closest other previous centroid
+    private double[] previousNorms; // Sparse encoding only
+    protected double sampleFraction; // Mini-batch mode: fraction of the records processed by the current iteration (1 = all of them)
+    private Random random; // Used to draw the records of the mini-batch
+    protected long[] distanceCounts = new long[3]; // Distances computed ([0]) and pruned ([1]) by the map task, assignments different from the scalar scan ([2])
+    protected long[] reassignmentCounts = new long[3]; // Distances computed ([0]) and pruned ([1]) by the check of the previous centroids, reassigned points ([2])
+    protected double[] cost = new double[1]; // Sum of the squared distances of the points from their nearest centroid
+    private final double[] minDistance = new double[1]; // Distance of the current point from its nearest centroid, filled by the search
+    protected long[] timings = new long[2]; // Nanoseconds spent parsing ([0]) and assigning ([1]) the records
 
     @Override
     public void setup(Context context) throws IOException {
-        // Mapper initialization (reading list of centroids from an external file)
+        // Mapper initialization (reading the list of centroids attached to the job by the driver)
         Configuration conf = context.getConfiguration();
+        long submitted = conf.getLong("metrics.submit.time", 0);
+        context.getCounter(Counters.MAP_TASKS).increment(1);
+        if (submitted > 0)
+            context.getCounter(Counters.TASK_START_DELAY_MS).increment(Math.max(0, System.currentTimeMillis() - submitted));
         k = conf.getInt("k", 2);
         d = conf.getInt("d", 2);
-        centroids = new Point[k];
-        initializeCentroids(context);
+        Point[] loaded = Centroids.load(context); // Single bulk read of the binary centroids (inlined in the configuration or from the distributed cache)
+        centroids = Arrays.copyOf(loaded, k);
+        search = NearestCentroidSearch.create(conf, centroids); // Built once per map task
+        if (loaded.length == 2 * k) { // The centroids of the previous iteration follow the current ones
+            previousCentroids = Arrays.copyOfRange(loaded, k, 2 * k);
+            previousSearch = NearestCentroidSearch.createUnvalidated(conf, previousCentroids);
+            previousSeparations = new double[k];
+            Arrays.fill(previousSeparations, Double.POSITIVE_INFINITY);
+            for (int i = 0; i < k; i++)
+                for (int j = 0; j < i; j++) {
+                    double distance = previousCentroids[i].calculateDistanceSquared(previousCentroids[j]);
+                    previousSeparations[i] = Math.min(previousSeparations[i], distance);
+                    previousSeparations[j] = Math.min(previousSeparations[j], distance);
+                }
+        }
         cumulativePoints = new Point[k];
         for (int i = 0; i < k; i++) {
             cumulativePoints[i] = new Point(d);
         }
-        counter = 0;
+        parser = PointParser.create(conf);
+        coordinates = new double[d];
+        if (PointParser.SPARSE.equals(PointParser.getEncoding(conf))) {
+            if (!"linear".equals(conf.get("search", "linear")) || conf.getBoolean("search.validate", false)) // Sparse points are always assigned by a linear scan
+                throw new IllegalArgumentException("The sparse point encoding only supports search=linear, without search.validate");
+            sparsePoint = new SparsePoint();
+            centroidNorms = new double[k];
+            for (int i = 0; i < k; i++)
+                centroidNorms[i] = centroids[i].calculateDistanceSquared(new double[d]);
+            if (previousCentroids != null) {
+                previousNorms = new double[k];
+                for (int i = 0; i < k; i++)
+                    previousNorms[i] = previousCentroids[i].calculateDistanceSquared(new double[d]);
+            }
+        }
+        farthestPoints = createFarthestPoints(conf);
+        sampleFraction = conf.getDouble("minibatch.fraction", 1);
+        random = createRandom(context, 0);
     }
 
     @Override
-    public void map(LongWritable key, Text value, Context context) {
-        long start = System.currentTimeMillis();
-
-        Point point = new Point(value.toString(), d); // Create Point object
-        cumulativePoints[computeNearestIndex(point)].sumPoint(point); // Accumulate the point in "cumulative point" relative to the nearest centroid
-
-        time += (System.currentTimeMillis() - start); // To accumulate the execution time of (only) the map functions
-        counter++;
+    public void map(LongWritable key, Writable value, Context context) {
+        if (sampleFraction < 1 && random.nextDouble() >= sampleFraction)
+            return; // Not in the mini-batch of this iteration (skipped before parsing it)
+        long start = System.nanoTime();
+        long parsed;
+        if (sparsePoint != null) {
+            SparsePoint point = readSparse(value, parser, sparsePoint);
+            parsed = System.nanoTime();
+            accumulate(point, coordinates, cumulativePoints, farthestPoints, distanceCounts, cost, reassignmentCounts);
+        } else {
+            double[] point = readCoordinates(value, parser, coordinates);
+            parsed = System.nanoTime();
+            accumulate(point, cumulativePoints, farthestPoints, distanceCounts, cost, minDistance, reassignmentCounts); // Accumulate the point in "cumulative point" relative to the nearest centroid
+        }
+        timings[0] += parsed - start;
+        timings[1] += System.nanoTime() - parsed;
     }
 
     @Override
     public void cleanup(Context context) throws InterruptedException, IOException { // (In-Mapper Combining)
-        for (int i = 0; i < k; i++) { // Emit all the k cumulative points
-            context.write(new IntWritable(i), cumulativePoints[i]);
+        if ("packed".equals(context.getConfiguration().get("shuffle", "points")))
+            emitPacked(context);
+        else {
+            for (int i = 0; i < k; i++) { // Emit all the k cumulative points
+                context.write(new IntWritable(i), cumulativePoints[i]);
+            }
+            for (Point candidate : farthestPoints.toPoints()) // Emit the candidates for re-seeding the empty clusters
+                context.write(new IntWritable(FarthestPoints.KEY), candidate);
+            Point taskCost = new Point();
+            taskCost.setCoordinates(new double[]{cost[0]});
+            context.write(new IntWritable(COST_KEY), taskCost);
         }
+        incrementCounters(context);
+    }
 
-        // used in test phase to write to file the execution time of the mapper (sum of execution times of map function)
-        /*FileContext fc = FileContext.getFileContext(context.getConfiguration());
-        Path filePath = new Path("counter_mapper_inmapcomb" + context.getTaskAttemptID().getTaskID().toString().split("_")[4] + ".txt");
-        try (FSDataOutputStream fin = fc.create(filePath, EnumSet.of(CreateFlag.CREATE, CreateFlag.APPEND))) {
-            fin.writeBytes(counter + "\n");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }*/
+    private void incrementCounters(Context context) {
+        long records = 0;
+        boolean clusterCounters = k <= context.getConfiguration().getInt("metrics.cluster.counters", 20);
+        for (int i = 0; i < k; i++) {
+            records += cumulativePoints[i].getNumberOfPoints();
+            if (clusterCounters)
+                context.getCounter(CLUSTER_SIZES, "cluster_" + i).increment(cumulativePoints[i].getNumberOfPoints());
+        }
+        context.getCounter(Counters.RECORDS_ASSIGNED).increment(records);
+        context.getCounter(Counters.DISTANCES_COMPUTED).increment(distanceCounts[0]);
+        context.getCounter(Counters.DISTANCES_PRUNED).increment(distanceCounts[1]);
+        context.getCounter(Counters.SEARCH_MISMATCHES).increment(distanceCounts[2]);
+        context.getCounter(Counters.REASSIGNED_POINTS).increment(reassignmentCounts[2]);
+        context.getCounter(Counters.REASSIGNMENT_DISTANCES).increment(reassignmentCounts[0]);
+        context.getCounter(Counters.PARSE_TIME_MS).increment(timings[0] / 1000000);
+        context.getCounter(Counters.ASSIGNMENT_TIME_MS).increment(timings[1] / 1000000);
     }
 
-    // The following method extracts line by line all the points, corresponding to the coordinates of the centroids, from a file.
-    // Each line contains the coordinates of a centroid.
-    private void initializeCentroids(Context context) throws IOException {
-        String hdfsFile = "centroids.txt";
-        FileContext fc = FileContext.getFileContext(context.getConfiguration());
-        Path filePath = new Path(hdfsFile);
-        // Read the file of centroids line by line
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fc.open(filePath)))) {
-            String line;
-            int centroidCount = 0;
-            while ((line = reader.readLine()) != null && centroidCount < k)
-                centroids[centroidCount++] = new Point(line, d);
-        } catch (FileNotFoundException e) {
-            // Handle the error if the file of centroids is not found
-            throw new IOException("Centroid file not found", e);
+    /*
+     Packed shuffle mode: the k cumulative points are split in one contiguous range per reducer, and each range is emitted as a single
+     record keyed by the number of its reducer (the default hash partitioner sends key r to reducer r). The candidates for re-seeding
+     and the cost of the task travel with the first range, so they are all merged by reducer 0.
+     */
+    private void emitPacked(Context context) throws IOException, InterruptedException {
+        int slices = context.getNumReduceTasks();
+        PartialSums partialSums = new PartialSums();
+        for (int slice = 0; slice < slices; slice++) {
+            partialSums.set(cumulativePoints, PartialSums.sliceStart(k, slices, slice), PartialSums.sliceStart(k, slices, slice + 1), slice == 0 ? farthestPoints.toPoints() : null, slice == 0 ? cost[0] : 0);
+            context.write(new IntWritable(slice), partialSums);
         }
     }
 
-    // Method that returns the index of the centroid closest to the point passed as argument
-    public int computeNearestIndex(Point point) {
-        double minDistance = point.calculateDistanceSquared(centroids[0]);
-        int minIndex = 0;
-        for (int i = 1; i < k; i++) {
-            double actualDistance = point.calculateDistanceSquared(centroids[i]);
-            if (actualDistance < minDistance) {
-                minDistance = actualDistance;
-                minIndex = i;
+    /*
+     Adds the point to the cumulative point of its nearest centroid, adds its squared distance (as returned by the search, in
+     minDistance[0]) to cost[0] and offers it as a candidate for re-seeding empty clusters. With the previous centroids, a point
+     whose nearest centroid changed is counted in reassignmentCounts[2] (the distances of the check go to reassignmentCounts too).
+     */
+    protected void accumulate(double[] point, Point[] sums, FarthestPoints farthest, long[] distanceCounts, double[] cost, double[] minDistance, long[] reassignmentCounts) {
+        int nearest = search.nearest(point, distanceCounts, minDistance);
+        double distance = minDistance[0];
+        sums[nearest].sumCoordinates(point);
+        cost[0] += distance;
+        farthest.offer(point, distance);
+        if (previousCentroids != null && isReassigned(point, nearest, reassignmentCounts, minDistance))
+            reassignmentCounts[2]++;
+    }
+
+    /*
+     True if the previous centroid with the same index was not the nearest one to the point. Most points are decided by a single
+     distance: if the point is within half the distance from the previous centroid to its closest other previous centroid, no other one
+     can be closer (Hamerly's bound); only the others are searched among all the previous centroids. The scratch buffer receives the
+     distance found by that search (which is not needed).
+     */
+    private boolean isReassigned(double[] point, int nearest, long[] reassignmentCounts, double[] scratch) {
+        reassignmentCounts[0]++;
+        if (previousCentroids[nearest].calculateDistanceSquared(point) * TriangleInequalitySearch.PRUNING_FACTOR <= previousSeparations[nearest])
+            return false;
+        return previousSearch.nearest(point, reassignmentCounts, scratch) != nearest;
+    }
+
+    /*
+     Same as above for a sparse point: the distances (a scan of all the centroids, the only "search" allowed by setup for sparse points)
+     and the sum only touch its non-zero coordinates, and it is expanded into the buffer only when it is kept as a farthest point.
+     */
+    protected void accumulate(SparsePoint point, double[] buffer, Point[] sums, FarthestPoints farthest, long[] distanceCounts, double[] cost, long[] reassignmentCounts) {
+        int nearest = 0;
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < k; i++) {
+            double distance = point.calculateDistanceSquared(centroids[i].getCoordinates(), centroidNorms[i]);
+            if (distance < minDistance) {
+                minDistance = distance;
+                nearest = i;
+            }
+        }
+        distanceCounts[0] += k;
+        point.sumTo(sums[nearest]);
+        cost[0] += minDistance;
+        if (farthest.accepts(minDistance))
+            farthest.offer(point.toDense(buffer), minDistance);
+        if (previousCentroids != null) { // Same test of the dense points, with the scan of the previous centroids
+            reassignmentCounts[0]++;
+            double previousDistance = point.calculateDistanceSquared(previousCentroids[nearest].getCoordinates(), previousNorms[nearest]);
+            if (previousDistance * TriangleInequalitySearch.PRUNING_FACTOR > previousSeparations[nearest]) {
+                for (int i = 0; i < k; i++) // Reassigned if some other previous centroid is strictly closer (or equally close with a lower index)
+                    if (i != nearest) {
+                        reassignmentCounts[0]++;
+                        double distance = point.calculateDistanceSquared(previousCentroids[i].getCoordinates(), previousNorms[i]);
+                        if (distance < previousDistance || (distance == previousDistance && i < nearest)) {
+                            reassignmentCounts[2]++;
+                            break;
+                        }
+                    }
             }
         }
-        return minIndex;
     }
-}
 
+    // Each task keeps at most "reseed.candidates" candidates (16 by default): at most that many clusters can be re-seeded per iteration
+    protected static FarthestPoints createFarthestPoints(Configuration conf) {
+        int k = conf.getInt("k", 2);
+        return new FarthestPoints(Math.min(k, conf.getInt("reseed.candidates", 16)), conf.getInt("d", 2));
+    }
+
+    // The seed changes with the iteration, the map task and the thread, so every iteration draws a different mini-batch
+    protected static Random createRandom(Context context, int thread) {
+        Configuration conf = context.getConfiguration();
+        long seed = conf.getLong("minibatch.seed", 0);
+        seed = seed * 31 + conf.getInt("iteration", 0);
+        seed = seed * 31 + context.getTaskAttemptID().getTaskID().getId();
+        return new Random(seed * 31 + thread);
+    }
+
+    /*
+     Returns the coordinates of the input record: the binary records are used directly (no copy), while the text lines are parsed
+     into the reused buffer (no objects are created per record).
+     */
+    protected static double[] readCoordinates(Writable value, PointParser parser, double[] buffer) {
+        if (value instanceof Point)
+            return ((Point) value).getCoordinates();
+        if (value instanceof SparsePoint) // Binary cache of the sparse encoding, read by a job that needs the dense coordinates
+            return ((SparsePoint) value).toDense(buffer);
+        parser.parse((Text) value, buffer);
+        return buffer;
+    }
+
+    // Sparse encoding: returns the record as a SparsePoint (the binary records are used directly, the text lines are parsed into the buffer)
+    protected static SparsePoint readSparse(Writable value, PointParser parser, SparsePoint buffer) {
+        if (value instanceof SparsePoint)
+            return (SparsePoint) value;
+        parser.parseSparse((Text) value, buffer);
+        return buffer;
+    }
+
+    // Method that returns the index of the centroid closest to the point passed as argument
+    public int computeNearestIndex(Point point) {
+        return computeNearestIndex(point.getCoordinates(), new long[4]);
+    }
+
+    /*
+     Same as above, working on the raw coordinates of the point. The number of computed and pruned distances is added to
+     distanceCounts (passed by the caller, so that each thread of MultithreadedKMeansMapper can use its own array).
+     */
+    public int computeNearestIndex(double[] point, long[] distanceCounts) {
+        return search.nearest(point, distanceCounts);
+    }
+}
@@ -0,0 +1,351 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ k-means|| seeding (Bahmani et al., "Scalable K-Means++"), used when "init" = "parallel".
+ 1. A first center is picked uniformly at random from the whole input (one job: reservoir sampling in the mappers, weighted choice in the reducer).
+ 2. For "init.rounds" rounds: a job computes the cost phi of the input with respect to the current candidates, then a map-only job samples
+    each point independently with probability l * d^2(x, C) / phi, where l = "init.oversampling" * k. The sampled points become candidates.
+ 3. A last cost job counts how many points are closest to each candidate, and the driver reduces the (few) weighted candidates
+    to k seeds with weighted k-means++ followed by weighted Lloyd iterations, all in memory.
+ Differently from the random initialization, the input is never streamed through the driver and n is not needed.
+ */
+public class KMeansParallelInitializer {
+    private static final int LOCAL_ITERATIONS = 20; // Maximum number of Lloyd iterations run on the weighted candidates
+
+    public static Point[] initialize(Configuration conf, Path input, Path workDir) throws IOException, InterruptedException, ClassNotFoundException {
+        int k = conf.getInt("k", 2);
+        int d = conf.getInt("d", 2);
+        int rounds = conf.getInt("init.rounds", 5);
+        double oversampling = conf.getDouble("init.oversampling", 2) * k;
+        long seed = conf.getLong("init.seed", System.nanoTime());
+        Random random = new Random(seed);
+        FileSystem fs = workDir.getFileSystem(conf);
+        fs.delete(workDir, true);
+        try {
+            List<Point> candidates = new ArrayList<>();
+            candidates.add(pickFirstCenter(conf, input, new Path(workDir, "first"), seed));
+            double[] weights = null;
+            for (int round = 0; round <= rounds; round++) {
+                Point[] currentCandidates = candidates.toArray(new Point[0]);
+                Path candidatesFile = new Path(workDir, "candidates_" + round + ".bin"); // Used only if the candidates cannot be inlined in the configuration
+                weights = computeCostAndWeights(conf, input, currentCandidates, candidatesFile, new Path(workDir, "cost_" + round));
+                double cost = weights[candidates.size()];
+                System.out.println("k-means|| round " + round + ": " + candidates.size() + " candidates, cost " + cost);
+                if (round == rounds || cost == 0) // The weights of the last cost job are the ones of the final candidates
+                    break;
+                candidates.addAll(sample(conf, input, currentCandidates, candidatesFile, cost, oversampling, seed + round, new Path(workDir, "sample_" + round)));
+            }
+            if (candidates.size() < k)
+                throw new IllegalStateException("k-means|| produced only " + candidates.size() + " candidates for k=" + k);
+            return reduceCandidates(candidates, weights, k, random);
+        } finally {
+            fs.delete(workDir, true);
+        }
+    }
+
+    private static Job createJob(Configuration conf, String name, Path input, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "kmeansclustering-init-" + name);
+        job.setJarByClass(KMeansParallelInitializer.class);
+        KMeansClustering.setInputFormat(job, conf);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    private static Point pickFirstCenter(Configuration conf, Path input, Path output, long seed) throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration jobConf = new Configuration(conf);
+        jobConf.setLong("init.seed", seed);
+        Job job = createJob(jobConf, "first", input, output);
+        job.setMapperClass(FirstCenterMapper.class);
+        job.setReducerClass(FirstCenterReducer.class);
+        job.setNumReduceTasks(1);
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(Point.class);
+        if (!job.waitForCompletion(true))
+            throw new IOException("k-means|| initialization failed (first center)");
+        return readPoints(conf, new Path(output, "part-r-00000"), conf.getInt("d", 2), true).get(0);
+    }
+
+    /*
+     Runs a job that assigns each point to its closest candidate. The returned array holds the number of points assigned
+     to each candidate and, in the last position, the total cost (sum of the squared distances).
+     */
+    static double[] computeCostAndWeights(Configuration conf, Path input, Point[] candidates, Path candidatesFile, Path output) throws IOException, InterruptedException, ClassNotFoundException {
+        Job job = createJob(conf, "cost", input, output);
+        Centroids.distribute(job, candidates, candidatesFile);
+        job.setMapperClass(CostMapper.class);
+        job.setCombinerClass(SumReducer.class);
+        job.setReducerClass(SumReducer.class);
+        job.setNumReduceTasks(1);
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(DoubleWritable.class);
+        if (!job.waitForCompletion(true))
+            throw new IOException("k-means|| initialization failed (cost)");
+        double[] weights = new double[candidates.length + 1];
+        FileContext fc = FileContext.getFileContext(conf);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fc.open(new Path(output, "part-r-00000"))))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] splits = line.split("\t");
+                int index = Integer.parseInt(splits[0]);
+                weights[index < 0 ? candidates.length : index] = Double.parseDouble(splits[1]);
+            }
+        }
+        return weights;
+    }
+
+    private static List<Point> sample(Configuration conf, Path input, Point[] candidates, Path candidatesFile, double cost, double oversampling, long seed, Path output) throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration jobConf = new Configuration(conf);
+        jobConf.setDouble("init.cost", cost);
+        jobConf.setDouble("init.oversampling", oversampling);
+        jobConf.setLong("init.seed", seed);
+        Job job = createJob(jobConf, "sample", input, output);
+        Centroids.distribute(job, candidates, candidatesFile);
+        job.setMapperClass(SamplingMapper.class);
+        job.setNumReduceTasks(0); // Map-only: every mapper writes its sampled points
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Point.class);
+        if (!job.waitForCompletion(true))
+            throw new IOException("k-means|| initialization failed (sampling)");
+        List<Point> sampled = new ArrayList<>();
+        FileSystem fs = output.getFileSystem(conf);
+        for (FileStatus status : fs.globStatus(new Path(output, "part-m-*")))
+            sampled.addAll(readPoints(conf, status.getPath(), conf.getInt("d", 2), false));
+        return sampled;
+    }
+
+    // Weighted k-means++ on the candidates, refined by weighted Lloyd iterations
+    private static Point[] reduceCandidates(List<Point> candidates, double[] weights, int k, Random random) {
+        int m = candidates.size();
+        int d = candidates.get(0).getCoordinates().length;
+        Point[] seeds = new Point[k];
+        double[] minDistances = new double[m];
+        Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+        int chosen = pickWeighted(weights, null, m, random);
+        for (int c = 0; c < k; c++) {
+            seeds[c] = copy(candidates.get(chosen));
+            for (int i = 0; i < m; i++)
+                minDistances[i] = Math.min(minDistances[i], seeds[c].calculateDistanceSquared(candidates.get(i)));
+            chosen = pickWeighted(weights, minDistances, m, random);
+        }
+        long[] distanceCounts = new long[2];
+        for (int iteration = 0; iteration < LOCAL_ITERATIONS; iteration++) {
+            NearestCentroidSearch search = new LinearSearch(seeds);
+            double[][] sums = new double[k][d];
+            double[] totals = new double[k];
+            for (int i = 0; i < m; i++) {
+                int nearest = search.nearest(candidates.get(i).getCoordinates(), distanceCounts);
+                double[] coordinates = candidates.get(i).getCoordinates();
+                for (int j = 0; j < d; j++)
+                    sums[nearest][j] += weights[i] * coordinates[j];
+                totals[nearest] += weights[i];
+            }
+            boolean changed = false;
+            for (int c = 0; c < k; c++) {
+                if (totals[c] == 0)
+                    continue; // Keep the seed of a cluster that lost all its candidates
+                for (int j = 0; j < d; j++)
+                    sums[c][j] /= totals[c];
+                changed |= !Arrays.equals(sums[c], seeds[c].getCoordinates());
+                seeds[c].setCoordinates(sums[c]);
+            }
+            if (!changed)
+                break;
+        }
+        return seeds;
+    }
+
+    // Picks an index with probability proportional to weights[i] * distances[i] (only weights[i] when distances is null)
+    private static int pickWeighted(double[] weights, double[] distances, int m, Random random) {
+        double total = 0;
+        for (int i = 0; i < m; i++)
+            total += weights[i] * (distances == null ? 1 : distances[i]);
+        if (total == 0) // All the candidates are already covered: any of them is as good as the others
+            return random.nextInt(m);
+        double target = random.nextDouble() * total;
+        for (int i = 0; i < m; i++) {
+            target -= weights[i] * (distances == null ? 1 : distances[i]);
+            if (target < 0)
+                return i;
+        }
+        return m - 1;
+    }
+
+    private static Point copy(Point point) {
+        Point copy = new Point(point.getCoordinates().length);
+        copy.sumPoint(point);
+        copy.setNumberOfPoints(1);
+        return copy;
+    }
+
+    // Reads one point per line; if keyed is true each line has the format "key   point" (as written by TextOutputFormat)
+    private static List<Point> readPoints(Configuration conf, Path path, int d, boolean keyed) throws IOException {
+        List<Point> points = new ArrayList<>();
+        FileContext fc = FileContext.getFileContext(conf);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fc.open(path)))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                points.add(new Point(keyed ? line.split("\t")[1] : line, d));
+        }
+        return points;
+    }
+
+    private static long taskSeed(Mapper<?, ?, ?, ?>.Context context) {
+        return context.getConfiguration().getLong("init.seed", 0) * 31 + context.getTaskAttemptID().getTaskID().getId();
+    }
+
+    // Keeps one uniformly random record of the split (reservoir sampling); the number of records of the split is stored in the point
+    public static class FirstCenterMapper extends Mapper<LongWritable, Writable, IntWritable, Point> {
+        private PointParser parser;
+        private double[] buffer;
+        private Point chosen;
+        private int records;
+        private Random random;
+
+        @Override
+        public void setup(Context context) {
+            int d = context.getConfiguration().getInt("d", 2);
+            parser = PointParser.create(context.getConfiguration());
+            buffer = new double[d];
+            chosen = new Point(d);
+            random = new Random(taskSeed(context));
+        }
+
+        @Override
+        public void map(LongWritable key, Writable value, Context context) {
+            records++;
+            if (random.nextInt(records) == 0) { // The i-th record replaces the chosen one with probability 1/i
+                double[] coordinates = KMeansMapper.readCoordinates(value, parser, buffer);
+                System.arraycopy(coordinates, 0, chosen.getCoordinates(), 0, coordinates.length);
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            if (records > 0) {
+                chosen.setNumberOfPoints(records);
+                context.write(new IntWritable(0), chosen);
+            }
+        }
+    }
+
+    // Chooses one of the points kept by the mappers with probability proportional to the size of its split
+    public static class FirstCenterReducer extends Reducer<IntWritable, Point, IntWritable, Point> {
+        @Override
+        public void reduce(IntWritable key, Iterable<Point> values, Context context) throws IOException, InterruptedException {
+            Random random = new Random(context.getConfiguration().getLong("init.seed", 0));
+            Point chosen = null;
+            long total = 0;
+            for (Point value : values) {
+                total += value.getNumberOfPoints();
+                if (random.nextDouble() * total < value.getNumberOfPoints())
+                    chosen = copy(value); // The value object is reused by the iterator
+            }
+            context.write(key, chosen);
+        }
+    }
+
+    /*
+     Nearest candidate search of the mappers. There are about oversampling * k * rounds candidates (e.g. 10000 for k = 1000), so the
+     strategies with O(m^2) tables (TriangleInequalitySearch) are never used: the kd-tree if chosen with "search", the linear scan otherwise.
+     */
+    static NearestCentroidSearch candidateSearch(Configuration conf, Point[] candidates) {
+        return "kdtree".equals(conf.get("search", "linear")) ? new KDTreeSearch(candidates) : new LinearSearch(candidates);
+    }
+
+    // Emits the total cost of the split (key -1) and the number of points closest to each candidate (key = index of the candidate)
+    public static class CostMapper extends Mapper<LongWritable, Writable, IntWritable, DoubleWritable> {
+        private PointParser parser;
+        private double[] buffer;
+        private Point[] candidates;
+        private NearestCentroidSearch search;
+        private long[] weights;
+        private double cost;
+        private final long[] distanceCounts = new long[2];
+        private final double[] minDistance = new double[1];
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            int d = conf.getInt("d", 2);
+            parser = PointParser.create(conf);
+            buffer = new double[d];
+            candidates = Centroids.load(context);
+            search = candidateSearch(conf, candidates);
+            weights = new long[candidates.length];
+        }
+
+        @Override
+        public void map(LongWritable key, Writable value, Context context) {
+            double[] coordinates = KMeansMapper.readCoordinates(value, parser, buffer);
+            int nearest = search.nearest(coordinates, distanceCounts, minDistance);
+            weights[nearest]++;
+            cost += minDistance[0];
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            context.write(new IntWritable(-1), new DoubleWritable(cost));
+            for (int i = 0; i < weights.length; i++)
+                if (weights[i] > 0)
+                    context.write(new IntWritable(i), new DoubleWritable(weights[i]));
+        }
+    }
+
+    public static class SumReducer extends Reducer<IntWritable, DoubleWritable, IntWritable, DoubleWritable> {
+        @Override
+        public void reduce(IntWritable key, Iterable<DoubleWritable> values, Context context) throws IOException, InterruptedException {
+            double sum = 0;
+            for (DoubleWritable value : values)
+                sum += value.get();
+            context.write(key, new DoubleWritable(sum));
+        }
+    }
+
+    // Samples each point independently with probability oversampling * d^2(x, candidates) / cost
+    public static class SamplingMapper extends Mapper<LongWritable, Writable, NullWritable, Point> {
+        private PointParser parser;
+        private double[] buffer;
+        private Point[] candidates;
+        private NearestCentroidSearch search;
+        private double factor;
+        private Random random;
+        private final Point sampled = new Point();
+        private final long[] distanceCounts = new long[2];
+        private final double[] minDistance = new double[1];
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            int d = conf.getInt("d", 2);
+            parser = PointParser.create(conf);
+            buffer = new double[d];
+            candidates = Centroids.load(context);
+            search = candidateSearch(conf, candidates);
+            factor = conf.getDouble("init.oversampling", 2) / conf.getDouble("init.cost", 1);
+            random = new Random(taskSeed(context));
+        }
+
+        @Override
+        public void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            double[] coordinates = KMeansMapper.readCoordinates(value, parser, buffer);
+            search.nearest(coordinates, distanceCounts, minDistance);
+            if (random.nextDouble() < minDistance[0] * factor) {
+                sampled.setCoordinates(coordinates);
+                context.write(NullWritable.get(), sampled);
+            }
+        }
+    }
+}
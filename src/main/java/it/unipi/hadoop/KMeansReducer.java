@@ -7,6 +7,18 @@ import java.io.IOException;
 
 public class KMeansReducer extends Reducer<IntWritable, Point, IntWritable, Point> {
     public void reduce(IntWritable key, Iterable<Point> values, Context context) throws IOException, InterruptedException {
+        if (key.get() == FarthestPoints.KEY) { // Candidates for re-seeding the empty clusters: only the overall farthest ones are kept
+            FarthestPoints farthestPoints = KMeansMapper.createFarthestPoints(context.getConfiguration());
+            for (Point candidate : values)
+                farthestPoints.offer(candidate);
+            for (Point candidate : farthestPoints.toPoints())
+                context.write(key, candidate);
+            return;
+        }
+        if (key.get() == KMeansMapper.COST_KEY) { // Costs of the map tasks: the total cost of the iteration is emitted as it is
+            context.write(key, Point.sumPoints(values));
+            return;
+        }
         Point centroid = Point.sumPoints(values); // Sum the points in the list "values" together
         centroid.divideByScalar(); // Divide the previously cumulated point (its coordinates) by the number of points "contained" in it
         context.write(key, centroid); // Emit the centroid (the key is the "index" of the centroid)
@@ -0,0 +1,26 @@
+package it.unipi.hadoop;
+
+// Brute-force scan of all the k centroids (the original assignment of KMeansMapper)
+public class LinearSearch implements NearestCentroidSearch {
+    private final Point[] centroids;
+
+    public LinearSearch(Point[] centroids) {
+        this.centroids = centroids;
+    }
+
+    @Override
+    public int nearest(double[] point, long[] distanceCounts, double[] minDistance) {
+        double bestDistance = centroids[0].calculateDistanceSquared(point);
+        int minIndex = 0;
+        for (int i = 1; i < centroids.length; i++) {
+            double actualDistance = centroids[i].calculateDistanceSquared(point);
+            if (actualDistance < bestDistance) {
+                bestDistance = actualDistance;
+                minIndex = i;
+            }
+        }
+        distanceCounts[0] += centroids.length;
+        minDistance[0] = bestDistance;
+        return minIndex;
+    }
+}
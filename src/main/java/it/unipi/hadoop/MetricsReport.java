@@ -0,0 +1,81 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.mapreduce.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/*
+ Machine-readable performance report of a run, written to "<output>_metrics.csv" (or to "metrics.report") with one row per
+ MapReduce iteration (or streaming batch). Besides the counters of KMeansMapper and the shuffle size, each row has the startup
+ latency (average time from the submission of the job to the setup of its map tasks, as measured by the tasks), the duration of
+ the job, the time spent by the driver before the next job (reading the output, updating the centroids and writing the
+ checkpoint), the error and the cost of the iteration and the reassigned points (0 if not counted). The file is rewritten after
+ every iteration, through a temporary file, so it is always complete; when the driver resumes from a checkpoint the rows of the
+ previous runs are kept.
+ */
+public class MetricsReport {
+    private static final String HEADER = "iteration,submit_time,startup_ms,job_ms,driver_ms,map_input_records,records_assigned,parse_ms,"
+            + "assignment_ms,distances_computed,distances_pruned,shuffle_bytes,error,cost,reassigned_points,cluster_sizes";
+
+    private final Path path;
+    private final List<String> rows = new ArrayList<>();
+
+    public MetricsReport(Configuration conf, String output, boolean keepRows) throws IOException {
+        path = new Path(conf.get("metrics.report", output + "_metrics.csv"));
+        FileSystem fs = path.getFileSystem(conf);
+        if (keepRows && fs.exists(path)) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path)))) {
+                String line = reader.readLine(); // Header
+                while ((line = reader.readLine()) != null)
+                    rows.add(line);
+            }
+        }
+    }
+
+    // Called before the submission of a job, so that its map tasks can measure their startup latency
+    public static void setSubmitTime(Job job, long submitted) {
+        job.getConfiguration().setLong("metrics.submit.time", submitted);
+    }
+
+    /*
+     Adds the row of a completed job: "submitted" is the time the job was submitted, "completed" the time waitForCompletion returned
+     and "updated" the time the driver finished updating the centroids and the checkpoint. Cluster sizes are separated by ';' (empty if not published).
+     */
+    public void add(int iteration, Job job, long submitted, long completed, long updated, double error, double cost, int k) throws IOException, InterruptedException {
+        Counters counters = job.getCounters();
+        long mapTasks = counters.findCounter(KMeansMapper.Counters.MAP_TASKS).getValue();
+        long startup = mapTasks > 0 ? counters.findCounter(KMeansMapper.Counters.TASK_START_DELAY_MS).getValue() / mapTasks : 0;
+        StringBuilder clusterSizes = new StringBuilder();
+        if (counters.getGroup(KMeansMapper.CLUSTER_SIZES).size() > 0)
+            for (int i = 0; i < k; i++)
+                clusterSizes.append(i > 0 ? ";" : "").append(counters.findCounter(KMeansMapper.CLUSTER_SIZES, "cluster_" + i).getValue());
+        rows.add(iteration + "," + submitted + "," + startup + "," + (completed - submitted) + "," + (updated - completed)
+                + "," + counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue()
+                + "," + counters.findCounter(KMeansMapper.Counters.RECORDS_ASSIGNED).getValue()
+                + "," + counters.findCounter(KMeansMapper.Counters.PARSE_TIME_MS).getValue()
+                + "," + counters.findCounter(KMeansMapper.Counters.ASSIGNMENT_TIME_MS).getValue()
+                + "," + counters.findCounter(KMeansMapper.Counters.DISTANCES_COMPUTED).getValue()
+                + "," + counters.findCounter(KMeansMapper.Counters.DISTANCES_PRUNED).getValue()
+                + "," + counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue()
+                + "," + error + "," + cost
+                + "," + counters.findCounter(KMeansMapper.Counters.REASSIGNED_POINTS).getValue() + "," + clusterSizes);
+    }
+
+    public void write(Configuration conf) throws IOException {
+        FileContext fc = FileContext.getFileContext(path.toUri(), conf);
+        Path temporary = path.suffix(".tmp");
+        try (FSDataOutputStream out = fc.create(temporary, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE))) {
+            out.writeBytes(HEADER + "\n");
+            for (String row : rows)
+                out.writeBytes(row + "\n");
+        }
+        fc.rename(temporary, path, Options.Rename.OVERWRITE);
+    }
+}
@@ -0,0 +1,133 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.IOException;
+import java.util.Random;
+
+/*
+ Multithreaded version of KMeansMapper, used when the "threads" property of the job configuration is greater than 1.
+ Differently from Hadoop's MultithreadedMapper (which would run setup/cleanup, and thus emit the k partial sums, once per thread),
+ a single map task splits its input among "threads" worker threads: each worker pulls batches of records from the shared
+ record reader, assigns them to the nearest centroid and accumulates them in its own partial sums (no synchronization on the hot path).
+ When the input is exhausted the partial sums of the workers are merged into cumulativePoints, and cleanup emits them as in KMeansMapper.
+ */
+public class MultithreadedKMeansMapper extends KMeansMapper {
+    private static final int BATCH_SIZE = 256; // Number of records copied from the record reader each time a worker acquires it
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+        setup(context);
+        int threads = context.getConfiguration().getInt("threads", 1);
+        Worker[] workers = new Worker[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Worker(context, t + 1);
+            workers[t].start();
+        }
+        Throwable error = null;
+        for (Worker worker : workers) {
+            worker.join();
+            if (error == null)
+                error = worker.error;
+        }
+        if (error instanceof RuntimeException) // e.g. the NaN_ERROR raised while parsing a point
+            throw (RuntimeException) error;
+        if (error != null)
+            throw new IOException("Worker thread failed", error);
+        for (Worker worker : workers) { // Merge the partial sums (and the statistics) of the workers
+            for (int i = 0; i < k; i++)
+                cumulativePoints[i].sumPoint(worker.partialSums[i]);
+            farthestPoints.merge(worker.farthestPoints);
+            distanceCounts[0] += worker.distanceCounts[0];
+            distanceCounts[1] += worker.distanceCounts[1];
+            distanceCounts[2] += worker.distanceCounts[2];
+            for (int i = 0; i < reassignmentCounts.length; i++)
+                reassignmentCounts[i] += worker.reassignmentCounts[i];
+            cost[0] += worker.cost[0];
+            timings[0] += worker.timings[0];
+            timings[1] += worker.timings[1];
+        }
+        cleanup(context);
+    }
+
+    private class Worker extends Thread {
+        private final Context context;
+        private final PointParser parser;
+        private final double[] coordinates = new double[d];
+        private final SparsePoint sparsePoint; // Sparse encoding only
+        private final Point[] partialSums = new Point[k];
+        private final Writable[] batch = new Writable[BATCH_SIZE]; // Text lines, binary Points or SparsePoints, depending on the input format
+        private final long[] distanceCounts = new long[3];
+        private final long[] reassignmentCounts = new long[3];
+        private final double[] cost = new double[1];
+        private final double[] minDistance = new double[1];
+        private final long[] timings = new long[2];
+        private final FarthestPoints farthestPoints;
+        private final Random random;
+        private Throwable error;
+
+        Worker(Context context, int thread) {
+            this.context = context;
+            this.parser = PointParser.create(context.getConfiguration());
+            this.sparsePoint = PointParser.SPARSE.equals(PointParser.getEncoding(context.getConfiguration())) ? new SparsePoint() : null;
+            this.random = createRandom(context, thread);
+            this.farthestPoints = createFarthestPoints(context.getConfiguration());
+            for (int i = 0; i < k; i++)
+                partialSums[i] = new Point(d);
+        }
+
+        @Override
+        public void run() {
+            try {
+                int size;
+                while ((size = nextBatch()) > 0) {
+                    for (int i = 0; i < size; i++) {
+                        if (sampleFraction < 1 && random.nextDouble() >= sampleFraction)
+                            continue; // Not in the mini-batch of this iteration
+                        long start = System.nanoTime();
+                        long parsed;
+                        if (sparsePoint != null) {
+                            SparsePoint point = readSparse(batch[i], parser, sparsePoint);
+                            parsed = System.nanoTime();
+                            accumulate(point, coordinates, partialSums, farthestPoints, distanceCounts, cost, reassignmentCounts);
+                        } else {
+                            double[] point = readCoordinates(batch[i], parser, coordinates);
+                            parsed = System.nanoTime();
+                            accumulate(point, partialSums, farthestPoints, distanceCounts, cost, minDistance, reassignmentCounts);
+                        }
+                        timings[0] += parsed - start;
+                        timings[1] += System.nanoTime() - parsed;
+                    }
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+
+        // Copies up to BATCH_SIZE records from the shared record reader (the reader reuses its value object, so the content is copied)
+        private int nextBatch() throws IOException, InterruptedException {
+            synchronized (context) {
+                int size = 0;
+                while (size < BATCH_SIZE && context.nextKeyValue()) {
+                    Writable value = context.getCurrentValue();
+                    if (value instanceof Point) {
+                        if (batch[size] == null)
+                            batch[size] = new Point(d);
+                        System.arraycopy(((Point) value).getCoordinates(), 0, ((Point) batch[size]).getCoordinates(), 0, d);
+                    } else if (value instanceof SparsePoint) {
+                        if (batch[size] == null)
+                            batch[size] = new SparsePoint();
+                        ((SparsePoint) batch[size]).set((SparsePoint) value);
+                    } else {
+                        if (batch[size] == null)
+                            batch[size] = new Text();
+                        ((Text) batch[size]).set((Text) value);
+                    }
+                    size++;
+                }
+                return size;
+            }
+        }
+    }
+}
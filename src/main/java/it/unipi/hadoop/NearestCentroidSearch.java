@@ -0,0 +1,52 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+
+/*
+ Strategy used by the mappers to find the centroid closest to a point. The implementation is chosen with the "search" property
+ of the job configuration and is built once per map task (in setup) from the centroids of the current iteration.
+ All the implementations return exactly the same index: the one of the closest centroid, and the lowest one in case of ties
+ (as the original linear scan does), except BlockedSearch with the norm expansion, whose rounding can resolve near ties
+ differently. Implementations must be thread safe, since MultithreadedKMeansMapper shares them among its workers.
+ */
+public interface NearestCentroidSearch {
+
+    /*
+     Returns the index of the centroid closest to the point and stores its squared distance in minDistance[0], so the caller never
+     computes it again. The number of distances actually computed is added to distanceCounts[0], the number of centroids skipped
+     without computing their distance is added to distanceCounts[1] (distanceCounts[2] is used by ValidatingSearch).
+     */
+    int nearest(double[] point, long[] distanceCounts, double[] minDistance);
+
+    // Same as above, when the distance is not needed
+    default int nearest(double[] point, long[] distanceCounts) {
+        return nearest(point, distanceCounts, new double[1]);
+    }
+
+    static NearestCentroidSearch create(String name, Point[] centroids) {
+        switch (name) {
+            case "linear":
+                return new LinearSearch(centroids);
+            case "triangle":
+                return new TriangleInequalitySearch(centroids);
+            case "kdtree":
+                return new KDTreeSearch(centroids);
+            case "blocked":
+                return new BlockedSearch(centroids, false);
+            default:
+                throw new IllegalArgumentException("Unknown nearest centroid search: " + name + " (expected linear, triangle, kdtree or blocked)");
+        }
+    }
+
+    // Strategy selected by the job configuration: "search", "search.expansion" (blocked only) and "search.validate"
+    static NearestCentroidSearch create(Configuration conf, Point[] centroids) {
+        NearestCentroidSearch search = createUnvalidated(conf, centroids);
+        return conf.getBoolean("search.validate", false) ? new ValidatingSearch(search, centroids) : search;
+    }
+
+    // Same as above, never wrapped in a ValidatingSearch (for the searches whose results are not assignments)
+    static NearestCentroidSearch createUnvalidated(Configuration conf, Point[] centroids) {
+        String name = conf.get("search", "linear");
+        return "blocked".equals(name) ? new BlockedSearch(centroids, conf.getBoolean("search.expansion", false)) : create(name, centroids);
+    }
+}
@@ -0,0 +1,58 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import java.io.IOException;
+
+/*
+ Reducer of the packed shuffle mode: reducer r receives one PartialSums per map task, all covering the same range of clusters,
+ merges them into a single vector of sums and counts and emits the centroids of the range as (index, centroid) records,
+ exactly as KMeansReducer does, so the driver reads the output in the same way. Reducer 0 also emits the candidates for re-seeding
+ and the total cost.
+ */
+public class PackedKMeansReducer extends Reducer<IntWritable, PartialSums, IntWritable, Point> {
+    @Override
+    public void reduce(IntWritable key, Iterable<PartialSums> values, Context context) throws IOException, InterruptedException {
+        FarthestPoints farthestPoints = KMeansMapper.createFarthestPoints(context.getConfiguration());
+        double[] sums = null;
+        long[] counts = null;
+        int first = 0, size = 0, d = 0;
+        double cost = 0;
+        for (PartialSums partial : values) { // Hadoop reuses the same value object: the sums are accumulated in our own arrays
+            if (sums == null) {
+                first = partial.getFirst();
+                size = partial.getSize();
+                d = partial.getD();
+                sums = new double[size * d];
+                counts = new long[size];
+            }
+            double[] partialSums = partial.getSums();
+            for (int i = 0; i < sums.length; i++)
+                sums[i] += partialSums[i];
+            long[] partialCounts = partial.getCounts();
+            for (int i = 0; i < size; i++)
+                counts[i] += partialCounts[i];
+            partial.offerCandidates(farthestPoints);
+            cost += partial.getCost();
+        }
+        IntWritable index = new IntWritable();
+        Point centroid = new Point(d);
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(sums, i * d, centroid.getCoordinates(), 0, d);
+            centroid.setNumberOfPoints((int) counts[i]);
+            centroid.divideByScalar(); // NaN coordinates for an empty cluster, as in KMeansReducer
+            index.set(first + i);
+            context.write(index, centroid);
+        }
+        index.set(FarthestPoints.KEY);
+        for (Point candidate : farthestPoints.toPoints())
+            context.write(index, candidate);
+        if (key.get() == 0) {
+            index.set(KMeansMapper.COST_KEY);
+            centroid.setCoordinates(new double[]{cost});
+            centroid.setNumberOfPoints(0);
+            context.write(index, centroid);
+        }
+    }
+}
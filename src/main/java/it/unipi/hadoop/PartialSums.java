@@ -0,0 +1,130 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ Packed shuffle mode ("shuffle" = "packed"): a contiguous range of the k cumulative points of a map task in a single record.
+ Serialized format: vint first cluster index, vint number of clusters, vint d, the sums (row-major, written by Point.writeValues, so
+ mostly zero sums take the sparse form), one vlong count per cluster, then vint number of candidates for re-seeding followed by their
+ d+1 values each (coordinates and squared distance, again by Point.writeValues), and the cost of the map task (0 except in the first range).
+ Compared to k (IntWritable, Point) records there is one key and one record header per range instead of one per cluster.
+ */
+public class PartialSums implements Writable {
+    private static final double[] EMPTY = new double[0];
+    private int first; // Index of the first cluster of the range
+    private int size; // Number of clusters of the range
+    private int d;
+    private double[] sums = EMPTY; // sums[i * d + j] is the j-th coordinate of the sum of the (first + i)-th cluster
+    private long[] counts = new long[0];
+    private double[] candidates = EMPTY; // Farthest points, (d + 1) doubles each (only in the record of the first range)
+    private int candidateCount;
+    private double cost; // Sum of the squared distances of the points of the task from their nearest centroid
+
+    public PartialSums() {
+    } // Necessary for Hadoop
+
+    // Copies the cumulative points [from, to), the given candidates (null if the range does not carry them) and cost
+    public void set(Point[] cumulativePoints, int from, int to, Point[] farthest, double cost) {
+        this.cost = cost;
+        first = from;
+        size = to - from;
+        d = size > 0 ? cumulativePoints[from].getCoordinates().length : 0;
+        sums = new double[size * d];
+        counts = new long[size];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(cumulativePoints[from + i].getCoordinates(), 0, sums, i * d, d);
+            counts[i] = cumulativePoints[from + i].getNumberOfPoints();
+        }
+        candidateCount = farthest == null ? 0 : farthest.length;
+        candidates = new double[candidateCount * (d + 1)];
+        for (int i = 0; i < candidateCount; i++)
+            System.arraycopy(farthest[i].getCoordinates(), 0, candidates, i * (d + 1), d + 1);
+    }
+
+    public int getFirst() {
+        return first;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getD() {
+        return d;
+    }
+
+    public double[] getSums() { // Backing array (no copy)
+        return sums;
+    }
+
+    public long[] getCounts() { // Backing array (no copy)
+        return counts;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    // Offers the candidates carried by this record
+    public void offerCandidates(FarthestPoints farthestPoints) {
+        double[] coordinates = new double[d];
+        for (int i = 0; i < candidateCount; i++) {
+            System.arraycopy(candidates, i * (d + 1), coordinates, 0, d);
+            farthestPoints.offer(coordinates, candidates[i * (d + 1) + d]);
+        }
+    }
+
+    @Override
+    public void write(DataOutput dataOutput) throws IOException {
+        WritableUtils.writeVInt(dataOutput, first);
+        WritableUtils.writeVInt(dataOutput, size);
+        WritableUtils.writeVInt(dataOutput, d);
+        Point.writeValues(dataOutput, sums, 0, sums.length);
+        for (long count : counts)
+            WritableUtils.writeVLong(dataOutput, count);
+        WritableUtils.writeVInt(dataOutput, candidateCount);
+        Point.writeValues(dataOutput, candidates, 0, candidateCount * (d + 1));
+        dataOutput.writeDouble(cost);
+    }
+
+    @Override
+    public void readFields(DataInput dataInput) throws IOException { // The arrays are reused when the shape does not change
+        first = WritableUtils.readVInt(dataInput);
+        size = WritableUtils.readVInt(dataInput);
+        d = WritableUtils.readVInt(dataInput);
+        sums = Point.readValues(dataInput, sums);
+        if (counts.length != size)
+            counts = new long[size];
+        for (int i = 0; i < size; i++)
+            counts[i] = WritableUtils.readVLong(dataInput);
+        candidateCount = WritableUtils.readVInt(dataInput);
+        candidates = Point.readValues(dataInput, candidates);
+        cost = dataInput.readDouble();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + first + ", " + (first + size) + ") " + Arrays.toString(counts);
+    }
+
+    /*
+     Number of ranges (and of reducers) used for k clusters of dimensionality d: each reducer merges about "packed.slice.size"
+     doubles per map task (2^18 by default, i.e. 2 MB), so small problems use a single reducer and a single output file,
+     while very large k * d are merged in parallel. There are never more ranges than clusters.
+     */
+    public static int chooseSlices(int k, int d, long sliceSize) {
+        long slices = ((long) k * d + sliceSize - 1) / Math.max(1, sliceSize);
+        return (int) Math.max(1, Math.min(k, slices));
+    }
+
+    // First cluster of the given range, when k clusters are split in "slices" ranges of (almost) the same size
+    public static int sliceStart(int k, int slices, int slice) {
+        return (int) ((long) k * slice / slices);
+    }
+}
@@ -5,11 +5,13 @@ import org.apache.hadoop.io.*;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 
 public class Point implements Writable {
-    private ArrayWritable coordinates = new ArrayWritable(DoubleWritable.class); // Using ArrayWritable class simplifies the serialization and deserialization of arrays
-    private IntWritable numberOfPoints = new IntWritable(1); // this field corresponds to the number of points "accumulated" in the current object (because a point can be the sum of more points)
+    private static final double[] EMPTY = new double[0];
+    private double[] coordinates = EMPTY; // Flat primitive array: no per-coordinate wrapper objects (distance and sum loops run directly on it)
+    private int numberOfPoints = 1; // this field corresponds to the number of points "accumulated" in the current object (because a point can be the sum of more points)
 
     public Point() {
     } // Necessary for Hadoop
@@ -19,12 +21,8 @@ public class Point implements Writable {
      It initializes the coordinates of the point with all zeros and sets the number of points to 0.
     */
     public Point(int d) {
-        DoubleWritable[] coords = new DoubleWritable[d];
-        for (int i = 0; i < d; i++) {
-            coords[i] = new DoubleWritable(0);
-        }
-        coordinates.set(coords);
-        numberOfPoints = new IntWritable(0);
+        coordinates = new double[d];
+        numberOfPoints = 0;
     }
 
     /*
@@ -36,62 +34,72 @@ public class Point implements Writable {
         if (!line.isEmpty()) {
             String[] coordinatesAux = line.split(",");
             // We assume that the line contains the exact number of coordinates d
-            DoubleWritable[] _coordinates = new DoubleWritable[d];
+            double[] _coordinates = new double[d];
             for (int i = 0; i < d; i++) {
                 double temp = Double.parseDouble(coordinatesAux[i]);
                 if (!Double.isNaN(temp)) {
-                    _coordinates[i] = new DoubleWritable(temp);
+                    _coordinates[i] = temp;
                 } else {
                     throw new IllegalArgumentException("NaN_ERROR");
                 }
             }
-            coordinates = new ArrayWritable(DoubleWritable.class, _coordinates);
+            coordinates = _coordinates;
         } else
             throw new IllegalArgumentException("Error during parsing of string! Empty line!");
     }
 
-    public DoubleWritable[] getCoordinates() {
-        Writable[] coordsW = coordinates.get();
-        DoubleWritable[] coordsDW = new DoubleWritable[coordsW.length];
-        for (int i = 0; i < coordsW.length; i++) {
-            coordsDW[i] = (DoubleWritable) coordsW[i];
-        }
-        return coordsDW;
+    public double[] getCoordinates() { // Returns the backing array (no copy): callers in the hot paths read and update it in place
+        return coordinates;
     }
 
-    public void setCoordinates(DoubleWritable[] coordinates) {
-        this.coordinates.set(coordinates);
+    public void setCoordinates(double[] coordinates) {
+        this.coordinates = coordinates;
     }
 
-    private int getNumberOfPoints() {
-        return numberOfPoints.get();
+    public int getNumberOfPoints() {
+        return numberOfPoints;
     }
 
-    private void setNumberOfPoints(int numberOfPoints) {
-        this.numberOfPoints = new IntWritable(numberOfPoints);
+    public void setNumberOfPoints(int numberOfPoints) {
+        this.numberOfPoints = numberOfPoints;
     }
 
     // The following method calculates the squared Euclidean distance between the current point and another point.
     public double calculateDistanceSquared(Point otherPoint) {
         double distanceSquared = 0;
         double diff;
-        DoubleWritable[] coordFirstPoint = getCoordinates();
-        DoubleWritable[] coordOtherPoint = otherPoint.getCoordinates();
+        double[] coordFirstPoint = coordinates;
+        double[] coordOtherPoint = otherPoint.coordinates;
         for (int i = 0; i < coordFirstPoint.length; i++) {
-            diff = coordFirstPoint[i].get() - coordOtherPoint[i].get();
+            diff = coordFirstPoint[i] - coordOtherPoint[i];
+            distanceSquared += diff * diff;
+        }
+        return distanceSquared;
+    }
+
+    // Same as above, but the other point is given by its raw coordinates (used in the map hot path to avoid creating Point objects)
+    public double calculateDistanceSquared(double[] otherCoordinates) {
+        double distanceSquared = 0;
+        double diff;
+        for (int i = 0; i < coordinates.length; i++) {
+            diff = coordinates[i] - otherCoordinates[i];
             distanceSquared += diff * diff;
         }
         return distanceSquared;
     }
 
     public void sumPoint(Point p) { // This method sums to the current point the point p (increasing properly the numberOfPoints field)
-        int totalNumberOfPoints = this.getNumberOfPoints();
-        DoubleWritable[] coordCurrentPoint = getCoordinates();
-        DoubleWritable[] coordOtherPoint = p.getCoordinates();
+        double[] coordCurrentPoint = coordinates;
+        double[] coordOtherPoint = p.coordinates;
         for (int i = 0; i < coordCurrentPoint.length; i++)
-            coordCurrentPoint[i].set(coordCurrentPoint[i].get() + coordOtherPoint[i].get());
-        totalNumberOfPoints += p.getNumberOfPoints();
-        this.setNumberOfPoints(totalNumberOfPoints);
+            coordCurrentPoint[i] += coordOtherPoint[i];
+        numberOfPoints += p.numberOfPoints;
+    }
+
+    public void sumCoordinates(double[] otherCoordinates) { // This method sums to the current point a single point given by its raw coordinates
+        for (int i = 0; i < coordinates.length; i++)
+            coordinates[i] += otherCoordinates[i];
+        numberOfPoints++;
     }
 
     /*
@@ -104,14 +112,15 @@ public class Point implements Writable {
         Iterator<Point> iter = list.iterator();
         Point temp;
         temp = iter.next(); // We can safely assume that there is at least one element in the list because otherwise the reduce function would not have been executed with the associated key
-        DoubleWritable[] coordCurrentPoint = temp.getCoordinates();
-        DoubleWritable[] coordNextPoint;
+        // Hadoop reuses the same value object while iterating, so the running sum must live in its own array
+        double[] coordCurrentPoint = temp.coordinates.clone();
+        double[] coordNextPoint;
         int countNumberOfPoints = temp.getNumberOfPoints();
         while (iter.hasNext()) {
             temp = iter.next();
-            coordNextPoint = temp.getCoordinates();
+            coordNextPoint = temp.coordinates;
             for (int i = 0; i < coordCurrentPoint.length; i++)
-                coordCurrentPoint[i].set(coordCurrentPoint[i].get() + coordNextPoint[i].get());
+                coordCurrentPoint[i] += coordNextPoint[i];
             countNumberOfPoints += temp.getNumberOfPoints();
         }
         temp.setNumberOfPoints(countNumberOfPoints);
@@ -119,16 +128,75 @@ public class Point implements Writable {
         return temp;
     }
 
+    /*
+     Serialized format: the coordinates (see writeValues), vint numberOfPoints.
+     Compared to the ArrayWritable of DoubleWritable used before, no class name or per-element object is involved,
+     and readFields reuses the existing array whenever the dimensionality does not change.
+     */
     @Override
     public void write(DataOutput dataOutput) throws IOException { // Point serialization
-        coordinates.write(dataOutput);
-        numberOfPoints.write(dataOutput);
+        writeValues(dataOutput, coordinates, 0, coordinates.length);
+        WritableUtils.writeVInt(dataOutput, numberOfPoints);
     }
 
     @Override
     public void readFields(DataInput dataInput) throws IOException { // Point deserialization
-        coordinates.readFields(dataInput);
-        numberOfPoints.readFields(dataInput);
+        coordinates = readValues(dataInput, coordinates);
+        numberOfPoints = WritableUtils.readVInt(dataInput);
+    }
+
+    /*
+     Writes "length" values as vint length followed by the raw IEEE-754 doubles or, when it takes fewer bytes (mostly zero values,
+     as the sums of the sparse points of high dimensional data), as vint -length, vint number of non-zero values and, for each of them,
+     the vint gap from the previous index and the raw double. Only +0.0 is omitted, so the values are always read back exactly.
+     */
+    static void writeValues(DataOutput dataOutput, double[] values, int from, int length) throws IOException {
+        int nonZeros = 0;
+        long sparseSize = 0;
+        for (int i = 0, previous = 0; i < length; i++) {
+            if (Double.doubleToRawLongBits(values[from + i]) != 0) {
+                nonZeros++;
+                sparseSize += WritableUtils.getVIntSize(i - previous) + 8;
+                previous = i;
+            }
+        }
+        sparseSize += WritableUtils.getVIntSize(nonZeros) + WritableUtils.getVIntSize(-length) - WritableUtils.getVIntSize(length);
+        if (sparseSize >= 8L * length) {
+            WritableUtils.writeVInt(dataOutput, length);
+            for (int i = 0; i < length; i++)
+                dataOutput.writeDouble(values[from + i]);
+            return;
+        }
+        WritableUtils.writeVInt(dataOutput, -length);
+        WritableUtils.writeVInt(dataOutput, nonZeros);
+        for (int i = 0, previous = 0; i < length; i++) {
+            if (Double.doubleToRawLongBits(values[from + i]) != 0) {
+                WritableUtils.writeVInt(dataOutput, i - previous);
+                dataOutput.writeDouble(values[from + i]);
+                previous = i;
+            }
+        }
+    }
+
+    // Reads the values written by writeValues, into "reuse" if it has the right length
+    static double[] readValues(DataInput dataInput, double[] reuse) throws IOException {
+        int length = WritableUtils.readVInt(dataInput);
+        boolean sparse = length < 0;
+        if (sparse)
+            length = -length;
+        double[] values = reuse.length == length ? reuse : new double[length];
+        if (!sparse) {
+            for (int i = 0; i < length; i++)
+                values[i] = dataInput.readDouble();
+            return values;
+        }
+        Arrays.fill(values, 0);
+        int nonZeros = WritableUtils.readVInt(dataInput);
+        for (int i = 0, index = 0; i < nonZeros; i++) {
+            index += WritableUtils.readVInt(dataInput);
+            values[index] = dataInput.readDouble();
+        }
+        return values;
     }
 
     /*
@@ -136,20 +204,18 @@ public class Point implements Writable {
      This method is necessary to compute the centroids of the clusters in the k-means algorithm.
      */
     public void divideByScalar() {
-        DoubleWritable[] coordPoint = getCoordinates();
-        for (DoubleWritable doubleWritable : coordPoint) {
-            // If a centroid has no near point, it will be a division by 0, that will give infinity (this case is admitted
-            // and then managed: the application will be stopped when the driver code will read NaN as coordinates for a centroid)
-            doubleWritable.set(doubleWritable.get() / getNumberOfPoints());
+        for (int i = 0; i < coordinates.length; i++) {
+            // If a centroid has no near point, it will be a division 0 / 0, that will give NaN (this case is admitted and then
+            // managed: the driver re-seeds the centroid with a farthest point, see FarthestPoints.reseedEmptyClusters)
+            coordinates[i] = coordinates[i] / getNumberOfPoints();
         }
     }
 
     public String toString() { // Format of toString: "coord[0],coord[1],coord[2]"
-        DoubleWritable[] coordPoint = getCoordinates();
         StringBuilder result = new StringBuilder();
-        for (int i = 0; i < coordPoint.length - 1; i++)
-            result.append(coordPoint[i].get()).append(",");
-        result.append(coordPoint[coordPoint.length - 1]);
+        for (int i = 0; i < coordinates.length - 1; i++)
+            result.append(coordinates[i]).append(",");
+        result.append(coordinates[coordinates.length - 1]);
         return result.toString();
     }
 }
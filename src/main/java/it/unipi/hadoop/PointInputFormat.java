@@ -0,0 +1,119 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/*
+ Input format for the binary cache of the dataset written by PointOutputFormat: each record is a point stored as d big-endian
+ doubles (8 * d bytes, no header and no separators), or d floats (4 * d bytes) with the "float" encoding, widened to doubles when
+ decoded. Since the records have a fixed width, the files can be split anywhere: each split processes the records that start
+ inside it. The key is the index of the record in the file, the value is a Point that is reused for all the records (its
+ coordinates are decoded in bulk from a buffer holding many records, so there is no text parsing at all).
+ */
+public class PointInputFormat extends FileInputFormat<LongWritable, Point> {
+
+    @Override
+    public RecordReader<LongWritable, Point> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new PointRecordReader();
+    }
+
+    public static class PointRecordReader extends RecordReader<LongWritable, Point> {
+        private static final int BUFFER_SIZE = 1 << 20; // Bytes read from the stream with a single call (at least one record)
+
+        private FSDataInputStream in;
+        private int d;
+        private long firstRecord;
+        private long endRecord; // Exclusive
+        private long nextRecord;
+        private byte[] buffer;
+        private DoubleBuffer doubles; // View of buffer as doubles
+        private FloatBuffer floats; // View of buffer as floats (float encoding, null otherwise)
+        private float[] floatRecord;
+        private int recordSize;
+        private int recordsPerRead; // Records that fit in BUFFER_SIZE bytes (1 if a single record is larger)
+        private int bufferedRecords;
+        private int bufferPosition; // Next record to return from the buffer
+        private final LongWritable key = new LongWritable();
+        private final Point value = new Point();
+
+        @Override
+        public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+            FileSplit split = (FileSplit) genericSplit;
+            Configuration conf = context.getConfiguration();
+            d = conf.getInt("d", 2);
+            boolean singlePrecision = PointParser.FLOAT.equals(PointParser.getEncoding(conf));
+            recordSize = (singlePrecision ? 4 : 8) * d;
+            firstRecord = (split.getStart() + recordSize - 1) / recordSize; // First record starting inside the split
+            endRecord = (split.getStart() + split.getLength() + recordSize - 1) / recordSize;
+            nextRecord = firstRecord;
+            Path file = split.getPath();
+            in = file.getFileSystem(conf).open(file);
+            in.seek(firstRecord * recordSize);
+            recordsPerRead = Math.max(1, BUFFER_SIZE / recordSize);
+            buffer = new byte[recordSize * recordsPerRead];
+            doubles = ByteBuffer.wrap(buffer).asDoubleBuffer();
+            if (singlePrecision) {
+                floats = ByteBuffer.wrap(buffer).asFloatBuffer();
+                floatRecord = new float[d];
+            }
+            value.setCoordinates(new double[d]);
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            if (nextRecord >= endRecord)
+                return false;
+            if (bufferPosition == bufferedRecords) { // Refill the buffer
+                bufferedRecords = (int) Math.min(recordsPerRead, endRecord - nextRecord);
+                in.readFully(buffer, 0, bufferedRecords * recordSize);
+                bufferPosition = 0;
+            }
+            if (floats != null) {
+                floats.position(bufferPosition * d);
+                floats.get(floatRecord);
+                double[] coordinates = value.getCoordinates();
+                for (int j = 0; j < d; j++)
+                    coordinates[j] = floatRecord[j];
+            } else {
+                doubles.position(bufferPosition * d);
+                doubles.get(value.getCoordinates());
+            }
+            bufferPosition++;
+            key.set(nextRecord++);
+            return true;
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public Point getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            return endRecord == firstRecord ? 1 : (float) (nextRecord - firstRecord) / (endRecord - firstRecord);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+        }
+    }
+}
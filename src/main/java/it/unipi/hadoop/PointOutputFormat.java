@@ -0,0 +1,37 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+
+// Writes the points as fixed-width records of d big-endian doubles, or floats with the "float" encoding (the format read by PointInputFormat)
+public class PointOutputFormat extends FileOutputFormat<NullWritable, Point> {
+
+    @Override
+    public RecordWriter<NullWritable, Point> getRecordWriter(TaskAttemptContext context) throws IOException {
+        Path file = getDefaultWorkFile(context, "");
+        FSDataOutputStream out = file.getFileSystem(context.getConfiguration()).create(file, false);
+        boolean singlePrecision = PointParser.FLOAT.equals(PointParser.getEncoding(context.getConfiguration()));
+        return new RecordWriter<NullWritable, Point>() {
+            @Override
+            public void write(NullWritable key, Point value) throws IOException {
+                for (double coordinate : value.getCoordinates()) {
+                    if (singlePrecision)
+                        out.writeFloat((float) coordinate);
+                    else
+                        out.writeDouble(coordinate);
+                }
+            }
+
+            @Override
+            public void close(TaskAttemptContext context) throws IOException {
+                out.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,203 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ Streaming parser for the comma-separated input lines. It reads the coordinates directly from the UTF-8 bytes of a Text
+ object into a caller-provided double[] (reused for every record), so that no String, String[] or Point is created per record.
+ The parsed values are exactly the ones Double.parseDouble would return: plain decimal numbers that fit in 2^53 with a
+ power of ten up to 10^22 are converted with a single (correctly rounded) multiplication or division, everything else
+ (long mantissas, large exponents, "Infinity", hexadecimal notation, ...) falls back to Double.parseDouble on the token.
+ The encoding of the points is chosen per job with "point.encoding":
+ - "double" (default): d comma-separated coordinates, parsed exactly;
+ - "float": same lines, with the coordinates rounded to single precision (the binary cache then stores 4 bytes per coordinate);
+ - "sparse": comma-separated "index:value" pairs with 0-based increasing indexes below d (the missing coordinates are zero) and
+   single precision values, parsed into a SparsePoint (or expanded to d coordinates by parse).
+ */
+public class PointParser {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53; // Largest integer range represented exactly by a double
+    private static final int MAX_DIGITS = 18; // Digits that can be accumulated in a long without overflow
+
+    public static final String DOUBLE = "double";
+    public static final String FLOAT = "float";
+    public static final String SPARSE = "sparse";
+
+    private final int d;
+    private final boolean sparse;
+    private final boolean singlePrecision; // Values rounded to float (float and sparse encodings)
+    private SparsePoint sparseBuffer; // Used by parse for the sparse lines
+
+    public PointParser(int d) {
+        this(d, DOUBLE);
+    }
+
+    public PointParser(int d, String encoding) {
+        if (!DOUBLE.equals(encoding) && !FLOAT.equals(encoding) && !SPARSE.equals(encoding))
+            throw new IllegalArgumentException("Unknown point encoding: " + encoding + " (expected double, float or sparse)");
+        this.d = d;
+        sparse = SPARSE.equals(encoding);
+        singlePrecision = !DOUBLE.equals(encoding);
+    }
+
+    // Parser of the lines of the job ("d" and "point.encoding")
+    public static PointParser create(Configuration conf) {
+        return new PointParser(conf.getInt("d", 2), getEncoding(conf));
+    }
+
+    public static String getEncoding(Configuration conf) {
+        return conf.get("point.encoding", DOUBLE);
+    }
+
+    // Parses the first d coordinates of the line into "coordinates" (same semantics as Point(String line, int d) for the double encoding)
+    public void parse(Text line, double[] coordinates) {
+        parse(line.getBytes(), 0, line.getLength(), coordinates);
+    }
+
+    public void parse(byte[] bytes, int start, int length, double[] coordinates) {
+        if (length == 0)
+            throw new IllegalArgumentException("Error during parsing of string! Empty line!");
+        if (sparse) {
+            if (sparseBuffer == null)
+                sparseBuffer = new SparsePoint();
+            parseSparse(bytes, start, length, sparseBuffer);
+            sparseBuffer.toDense(coordinates);
+            return;
+        }
+        int end = start + length;
+        int pos = start;
+        for (int i = 0; i < d; i++) {
+            if (pos > end)
+                throw new IllegalArgumentException("Error during parsing of string! Expected " + d + " coordinates");
+            int tokenEnd = pos;
+            while (tokenEnd < end && bytes[tokenEnd] != ',')
+                tokenEnd++;
+            double value = parseDouble(bytes, pos, tokenEnd);
+            if (Double.isNaN(value))
+                throw new IllegalArgumentException("NaN_ERROR");
+            coordinates[i] = singlePrecision ? (float) value : value;
+            pos = tokenEnd + 1; // Skip the comma
+        }
+    }
+
+    // Parses a sparse line ("index:value" pairs) into the reused point
+    public void parseSparse(Text line, SparsePoint point) {
+        parseSparse(line.getBytes(), 0, line.getLength(), point);
+    }
+
+    public void parseSparse(byte[] bytes, int start, int length, SparsePoint point) {
+        if (length == 0)
+            throw new IllegalArgumentException("Error during parsing of string! Empty line!");
+        point.clear();
+        int end = start + length;
+        int pos = start;
+        int lastIndex = -1;
+        while (pos < end) {
+            int tokenEnd = pos;
+            while (tokenEnd < end && bytes[tokenEnd] != ',')
+                tokenEnd++;
+            int colon = pos;
+            while (colon < tokenEnd && bytes[colon] != ':')
+                colon++;
+            int index = parseIndex(bytes, pos, colon);
+            if (colon == tokenEnd || index <= lastIndex || index >= d)
+                throw new IllegalArgumentException("Error during parsing of string! Expected index:value pairs with increasing indexes below " + d);
+            double value = parseDouble(bytes, colon + 1, tokenEnd);
+            if (Double.isNaN(value))
+                throw new IllegalArgumentException("NaN_ERROR");
+            point.add(index, (float) value);
+            lastIndex = index;
+            pos = tokenEnd + 1; // Skip the comma
+        }
+    }
+
+    private static int parseIndex(byte[] bytes, int from, int to) {
+        while (from < to && bytes[from] <= ' ')
+            from++;
+        while (to > from && bytes[to - 1] <= ' ')
+            to--;
+        if (from == to || to - from > 9)
+            return -1;
+        int index = 0;
+        for (int pos = from; pos < to; pos++) {
+            if (bytes[pos] < '0' || bytes[pos] > '9')
+                return -1;
+            index = index * 10 + (bytes[pos] - '0');
+        }
+        return index;
+    }
+
+    private static double parseDouble(byte[] bytes, int from, int to) {
+        // Trim the whitespaces (as Double.parseDouble does)
+        while (from < to && bytes[from] <= ' ')
+            from++;
+        while (to > from && bytes[to - 1] <= ' ')
+            to--;
+        int pos = from;
+        boolean negative = false;
+        if (pos < to && (bytes[pos] == '-' || bytes[pos] == '+'))
+            negative = bytes[pos++] == '-';
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean anyDigit = false;
+        while (pos < to && bytes[pos] >= '0' && bytes[pos] <= '9') {
+            anyDigit = true;
+            if (mantissa != 0 || bytes[pos] != '0') { // Leading zeros do not count as significant digits
+                if (++digits > MAX_DIGITS)
+                    return slowParse(bytes, from, to);
+                mantissa = mantissa * 10 + (bytes[pos] - '0');
+            }
+            pos++;
+        }
+        if (pos < to && bytes[pos] == '.') {
+            pos++;
+            while (pos < to && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                anyDigit = true;
+                if (mantissa != 0 || bytes[pos] != '0') {
+                    if (++digits > MAX_DIGITS)
+                        return slowParse(bytes, from, to);
+                    mantissa = mantissa * 10 + (bytes[pos] - '0');
+                }
+                exponent--;
+                pos++;
+            }
+        }
+        if (!anyDigit)
+            return slowParse(bytes, from, to);
+        if (pos < to && (bytes[pos] == 'e' || bytes[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < to && (bytes[pos] == '-' || bytes[pos] == '+'))
+                negativeExponent = bytes[pos++] == '-';
+            int explicitExponent = 0;
+            boolean anyExponentDigit = false;
+            while (pos < to && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                anyExponentDigit = true;
+                if (explicitExponent > 1000) // Out of the fast path range anyway
+                    return slowParse(bytes, from, to);
+                explicitExponent = explicitExponent * 10 + (bytes[pos++] - '0');
+            }
+            if (!anyExponentDigit)
+                return slowParse(bytes, from, to);
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (pos != to || mantissa > MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22)
+            return slowParse(bytes, from, to); // Trailing characters (e.g. "d"/"f" suffixes) or not exactly representable
+        double value = (double) mantissa;
+        if (exponent < 0)
+            value /= POWERS_OF_TEN[-exponent];
+        else
+            value *= POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private static double slowParse(byte[] bytes, int from, int to) {
+        return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+    }
+}
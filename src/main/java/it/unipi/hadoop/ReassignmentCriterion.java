@@ -0,0 +1,19 @@
+package it.unipi.hadoop;
+
+// Stops when at most "convergence.changed.fraction" of the points were assigned to a different centroid than in the previous iteration
+public class ReassignmentCriterion implements ConvergenceCriterion {
+    private final double fraction;
+
+    public ReassignmentCriterion(double fraction) {
+        this.fraction = fraction;
+    }
+
+    @Override
+    public boolean converged(IterationResult result) {
+        if (result.reassigned < 0 || result.assigned == 0)
+            return false;
+        double changed = (double) result.reassigned / result.assigned;
+        System.out.println("Reassigned points: " + result.reassigned + " (" + changed + " of the assigned ones)");
+        return changed <= fraction;
+    }
+}
@@ -0,0 +1,25 @@
+package it.unipi.hadoop;
+
+/*
+ Stops when the cost decreased by at most "convergence.sse.tolerance" (relative to the previous cost) in the last iteration:
+ the centroids may still move, but the clustering no longer improves. Needs two iterations with a known cost.
+ */
+public class RelativeCostCriterion implements ConvergenceCriterion {
+    private final double tolerance;
+    private double previousCost = Double.NaN;
+
+    public RelativeCostCriterion(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public boolean converged(IterationResult result) {
+        double previous = previousCost;
+        previousCost = result.cost;
+        if (Double.isNaN(previous) || Double.isNaN(result.cost))
+            return false;
+        double change = previous > 0 ? Math.abs(previous - result.cost) / previous : 0;
+        System.out.println("Relative cost change: " + change + " (cost " + result.cost + ")");
+        return change <= tolerance;
+    }
+}
@@ -0,0 +1,120 @@
+package it.unipi.hadoop;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ Point of the "sparse" encoding: only the non-zero coordinates are stored, as increasing indexes and single precision values.
+ Serialized format: vint number of non-zeros, then for each of them the vint gap from the previous index and the value as a float
+ (for feature vectors with a few non-zeros out of thousands of coordinates this is a small fraction of the 8 * d bytes of a Point).
+ The distance to a dense centroid and the sum into a dense Point only touch the non-zero coordinates.
+ */
+public class SparsePoint implements Writable {
+    private int[] indexes = new int[16];
+    private float[] values = new float[16];
+    private int size; // Number of non-zero coordinates
+
+    public SparsePoint() {
+    } // Necessary for Hadoop
+
+    public int size() {
+        return size;
+    }
+
+    public int[] getIndexes() { // Backing array (only the first size() elements are valid)
+        return indexes;
+    }
+
+    public float[] getValues() { // Backing array (only the first size() elements are valid)
+        return values;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Appends a coordinate (the indexes must be increasing)
+    public void add(int index, float value) {
+        if (size == indexes.length) {
+            indexes = Arrays.copyOf(indexes, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        indexes[size] = index;
+        values[size++] = value;
+    }
+
+    public void set(SparsePoint other) {
+        if (indexes.length < other.size) {
+            indexes = new int[other.indexes.length];
+            values = new float[other.indexes.length];
+        }
+        System.arraycopy(other.indexes, 0, indexes, 0, other.size);
+        System.arraycopy(other.values, 0, values, 0, other.size);
+        size = other.size;
+    }
+
+    // Expands the point into the d coordinates of the buffer
+    public double[] toDense(double[] buffer) {
+        Arrays.fill(buffer, 0);
+        for (int i = 0; i < size; i++)
+            buffer[indexes[i]] = values[i];
+        return buffer;
+    }
+
+    /*
+     Squared distance from a dense centroid, given its squared norm: |c|^2 + sum over the non-zeros of ((x_i - c_i)^2 - c_i^2).
+     The rounding differs from the one of the dense sum (it can even give a tiny negative value, clamped to 0).
+     */
+    public double calculateDistanceSquared(double[] centroid, double centroidNorm) {
+        double distance = centroidNorm;
+        for (int i = 0; i < size; i++) {
+            double coordinate = centroid[indexes[i]];
+            double diff = values[i] - coordinate;
+            distance += diff * diff - coordinate * coordinate;
+        }
+        return Math.max(0, distance);
+    }
+
+    // Adds the point to a dense cumulative point (increasing its number of points)
+    public void sumTo(Point sum) {
+        double[] coordinates = sum.getCoordinates();
+        for (int i = 0; i < size; i++)
+            coordinates[indexes[i]] += values[i];
+        sum.setNumberOfPoints(sum.getNumberOfPoints() + 1);
+    }
+
+    @Override
+    public void write(DataOutput dataOutput) throws IOException {
+        WritableUtils.writeVInt(dataOutput, size);
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            WritableUtils.writeVInt(dataOutput, indexes[i] - previous);
+            dataOutput.writeFloat(values[i]);
+            previous = indexes[i];
+        }
+    }
+
+    @Override
+    public void readFields(DataInput dataInput) throws IOException {
+        size = 0;
+        int count = WritableUtils.readVInt(dataInput);
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            index += WritableUtils.readVInt(dataInput);
+            add(index, dataInput.readFloat());
+        }
+    }
+
+    @Override
+    public String toString() { // Same format of the sparse input lines
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < size; i++)
+            result.append(i > 0 ? "," : "").append(indexes[i]).append(':').append(values[i]);
+        return result.toString();
+    }
+}
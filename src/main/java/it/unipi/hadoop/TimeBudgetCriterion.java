@@ -0,0 +1,21 @@
+package it.unipi.hadoop;
+
+/*
+ Wall-clock budget of the run ("convergence.time.budget", in seconds): stops when the next iteration, assumed to take as long as
+ the last one, would end after the budget, so the run never starts an iteration it cannot finish in time.
+ */
+public class TimeBudgetCriterion implements ConvergenceCriterion {
+    private final long budget; // Milliseconds
+
+    public TimeBudgetCriterion(long budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public boolean converged(IterationResult result) {
+        if (result.elapsed + result.duration <= budget)
+            return false;
+        System.out.println("Time budget of " + budget + " ms reached after " + result.elapsed + " ms");
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package it.unipi.hadoop;
+
+/*
+ Linear scan pruned with the triangle inequality: the centroid-to-centroid distances are precomputed once, and a centroid j is skipped
+ when 4 * d(x, best)^2 <= d(best, j)^2, i.e. d(best, j) >= 2 * d(x, best): in that case d(x, j) >= d(best, j) - d(x, best) >= d(x, best),
+ so j cannot be strictly closer than the current best (Elkan's lemma). The scan stops as soon as the current best is within half
+ the distance to its closest centroid (Hamerly's bound). The centroids are visited in index order, so ties are resolved as in the linear scan.
+ Memory is O(k^2), which is fine for k in the hundreds; for thousands of centroids KDTreeSearch should be preferred.
+ */
+public class TriangleInequalitySearch implements NearestCentroidSearch {
+    // Slightly larger than 4 so that floating point rounding can never change an assignment with respect to the linear scan (also
+    // used by KMeansMapper, so that rounding can never hide a reassignment)
+    static final double PRUNING_FACTOR = 4 * (1 + 1e-9);
+
+    private final Point[] centroids;
+    private final double[][] centroidDistances; // Squared distances between each pair of centroids
+    private final double[] minCentroidDistances; // For each centroid, the squared distance to the closest other centroid
+
+    public TriangleInequalitySearch(Point[] centroids) {
+        int k = centroids.length;
+        this.centroids = centroids;
+        centroidDistances = new double[k][k];
+        minCentroidDistances = new double[k];
+        for (int i = 0; i < k; i++) {
+            minCentroidDistances[i] = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < i; j++) {
+                centroidDistances[i][j] = centroidDistances[j][i] = centroids[i].calculateDistanceSquared(centroids[j]);
+                minCentroidDistances[i] = Math.min(minCentroidDistances[i], centroidDistances[i][j]);
+                minCentroidDistances[j] = Math.min(minCentroidDistances[j], centroidDistances[i][j]);
+            }
+        }
+    }
+
+    @Override
+    public int nearest(double[] point, long[] distanceCounts, double[] bestDistance) {
+        int k = centroids.length;
+        double minDistance = centroids[0].calculateDistanceSquared(point);
+        int minIndex = 0;
+        int computed = 1;
+        for (int i = 1; i < k; i++) {
+            double bound = minDistance * PRUNING_FACTOR;
+            if (bound <= minCentroidDistances[minIndex]) // Hamerly: no other centroid can be closer than the current best
+                break;
+            if (bound <= centroidDistances[minIndex][i]) // Elkan: centroid i cannot be closer than the current best
+                continue;
+            computed++;
+            double actualDistance = centroids[i].calculateDistanceSquared(point);
+            if (actualDistance < minDistance) {
+                minDistance = actualDistance;
+                minIndex = i;
+            }
+        }
+        distanceCounts[0] += computed;
+        distanceCounts[1] += k - computed;
+        bestDistance[0] = minDistance;
+        return minIndex;
+    }
+}
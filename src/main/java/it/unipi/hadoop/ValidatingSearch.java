@@ -0,0 +1,24 @@
+package it.unipi.hadoop;
+
+/*
+ Wrapper used with "search.validate": every assignment of the wrapped strategy is checked against LinearSearch (the scalar scan of
+ Point.calculateDistanceSquared), and the points assigned to a different centroid are counted in distanceCounts[2]
+ (published as the SEARCH_MISMATCHES counter). The assignment of the wrapped strategy is kept, the check costs a full scan per point.
+ */
+public class ValidatingSearch implements NearestCentroidSearch {
+    private final NearestCentroidSearch search;
+    private final LinearSearch reference;
+
+    public ValidatingSearch(NearestCentroidSearch search, Point[] centroids) {
+        this.search = search;
+        this.reference = new LinearSearch(centroids);
+    }
+
+    @Override
+    public int nearest(double[] point, long[] distanceCounts, double[] nearestDistance) {
+        int nearest = search.nearest(point, distanceCounts, nearestDistance);
+        if (reference.nearest(point, new long[1], new double[1]) != nearest) // The distances of the check are not counted
+            distanceCounts[2]++;
+        return nearest;
+    }
+}